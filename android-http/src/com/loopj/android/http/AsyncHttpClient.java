@@ -20,14 +20,14 @@ package com.loopj.android.http;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.WeakReference;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.zip.GZIPInputStream;
 
@@ -50,6 +50,7 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.conn.params.ConnManagerParams;
 import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.scheme.PlainSocketFactory;
@@ -58,6 +59,7 @@ import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
@@ -95,45 +97,58 @@ public class AsyncHttpClient {
     private static final int DEFAULT_MAX_CONNECTIONS = 10;
     private static final int DEFAULT_SOCKET_TIMEOUT = 10 * 1000;
     private static final int DEFAULT_MAX_RETRIES = 5;
+    private static final int DEFAULT_CORE_POOL_SIZE = DEFAULT_MAX_CONNECTIONS;
+    private static final int DEFAULT_MAX_POOL_SIZE = DEFAULT_CORE_POOL_SIZE;
+    private static final int DEFAULT_QUEUE_CAPACITY = 256;
     private static final int DEFAULT_SOCKET_BUFFER_SIZE = 8192;
     private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
     private static final String ENCODING_GZIP = "gzip";
 
     private static int maxConnections = DEFAULT_MAX_CONNECTIONS;
     private static int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+    private static ClientConnectionManager sharedConnectionManager;
 
     private final DefaultHttpClient httpClient;
     private final HttpContext httpContext;
     private ThreadPoolExecutor threadPool;
-    private final Map<Context, List<WeakReference<Future<?>>>> requestMap;
+    private final RequestRegistry requestRegistry;
     private final Map<String, String> clientHeaderMap;
+    private final ConcurrentHashMap<String, CoalescingResponseHandler> inFlightRequests;
+    private boolean coalesceGetRequests;
+    private HttpResponseCache responseCache;
+    private CircuitBreaker circuitBreaker;
+    private RetryBudget retryBudget;
+    private HedgePolicy hedgePolicy;
+    private ConcurrencyLimiter concurrencyLimiter;
+    private RetryHandler retryHandler;
 
 
     /**
      * Creates a new AsyncHttpClient.
      */
     public AsyncHttpClient() {
-        BasicHttpParams httpParams = new BasicHttpParams();
-
-        ConnManagerParams.setTimeout(httpParams, socketTimeout);
-        ConnManagerParams.setMaxConnectionsPerRoute(httpParams, new ConnPerRouteBean(maxConnections));
-        ConnManagerParams.setMaxTotalConnections(httpParams, DEFAULT_MAX_CONNECTIONS);
-
-        HttpConnectionParams.setSoTimeout(httpParams, socketTimeout);
-        HttpConnectionParams.setConnectionTimeout(httpParams, socketTimeout);
-        HttpConnectionParams.setTcpNoDelay(httpParams, true);
-        HttpConnectionParams.setSocketBufferSize(httpParams, DEFAULT_SOCKET_BUFFER_SIZE);
-
-        HttpProtocolParams.setVersion(httpParams, HttpVersion.HTTP_1_1);
-        HttpProtocolParams.setUserAgent(httpParams, String.format("android-async-http/%s (http://loopj.com/android-async-http)", VERSION));
+        this(null);
+    }
 
-        SchemeRegistry schemeRegistry = new SchemeRegistry();
-        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-        schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
-        ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(httpParams, schemeRegistry);
+    /**
+     * Creates a new AsyncHttpClient which makes its requests through the given
+     * connection manager. Clients sharing a connection manager reuse each
+     * other's keep-alive connections and TLS sessions, while all other
+     * settings stay per client.
+     * <p>
+     * <b>Note:</b> The scheme registry belongs to the connection manager, so
+     * {@link #setSSLSocketFactory(SSLSocketFactory)} applies to all clients sharing it.
+     * @param connectionManager the connection manager to use, or null to create a new one for this client.
+     * @see #getSharedConnectionManager()
+     */
+    public AsyncHttpClient(ClientConnectionManager connectionManager) {
+        BasicHttpParams httpParams = createHttpParams();
+        if(connectionManager == null) {
+            connectionManager = new ThreadSafeClientConnManager(httpParams, createSchemeRegistry());
+        }
 
         httpContext = new SyncBasicHttpContext(new BasicHttpContext());
-        httpClient = new DefaultHttpClient(cm, httpParams);
+        httpClient = new DefaultHttpClient(connectionManager, httpParams);
         httpClient.addRequestInterceptor(new HttpRequestInterceptor() {
             @Override
             public void process(HttpRequest request, HttpContext context) {
@@ -165,12 +180,64 @@ public class AsyncHttpClient {
             }
         });
 
-        httpClient.setHttpRequestRetryHandler(new RetryHandler(DEFAULT_MAX_RETRIES));
+        // Retries are made by AsyncHttpRequest with backoff, so the client itself must not retry
+        httpClient.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+        retryHandler = new RetryHandler(DEFAULT_MAX_RETRIES);
 
-        threadPool = (ThreadPoolExecutor)Executors.newCachedThreadPool();
+        // More workers than pooled connections would only block waiting for a connection
+        threadPool = new PriorityThreadPoolExecutor(DEFAULT_CORE_POOL_SIZE, DEFAULT_MAX_POOL_SIZE,
+                DEFAULT_QUEUE_CAPACITY, new ThreadPoolExecutor.AbortPolicy());
 
-        requestMap = new WeakHashMap<Context, List<WeakReference<Future<?>>>>();
+        requestRegistry = new RequestRegistry();
+        circuitBreaker = new CircuitBreaker();
+        retryBudget = new RetryBudget();
         clientHeaderMap = new HashMap<String, String>();
+        inFlightRequests = new ConcurrentHashMap<String, CoalescingResponseHandler>();
+    }
+
+    /**
+     * Returns a connection manager shared by the whole process, created on
+     * first use. Pass it to {@link #AsyncHttpClient(ClientConnectionManager)}
+     * so short lived clients do not open a new connection for every request.
+     */
+    public static synchronized ClientConnectionManager getSharedConnectionManager() {
+        if(sharedConnectionManager == null) {
+            sharedConnectionManager = new ThreadSafeClientConnManager(createHttpParams(), createSchemeRegistry());
+        }
+        return sharedConnectionManager;
+    }
+
+    /**
+     * Lets requests be sent again to all hosts which asked to be left alone
+     * with a Retry-After header. Such a host is blocked for all clients of the
+     * process, for at most the maximum elapsed time of the retry policy.
+     */
+    public static void clearHostThrottles() {
+        HostThrottle.clear();
+    }
+
+    private static BasicHttpParams createHttpParams() {
+        BasicHttpParams httpParams = new BasicHttpParams();
+
+        ConnManagerParams.setTimeout(httpParams, socketTimeout);
+        ConnManagerParams.setMaxConnectionsPerRoute(httpParams, new ConnPerRouteBean(maxConnections));
+        ConnManagerParams.setMaxTotalConnections(httpParams, DEFAULT_MAX_CONNECTIONS);
+
+        HttpConnectionParams.setSoTimeout(httpParams, socketTimeout);
+        HttpConnectionParams.setConnectionTimeout(httpParams, socketTimeout);
+        HttpConnectionParams.setTcpNoDelay(httpParams, true);
+        HttpConnectionParams.setSocketBufferSize(httpParams, DEFAULT_SOCKET_BUFFER_SIZE);
+
+        HttpProtocolParams.setVersion(httpParams, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setUserAgent(httpParams, String.format("android-async-http/%s (http://loopj.com/android-async-http)", VERSION));
+        return httpParams;
+    }
+
+    private static SchemeRegistry createSchemeRegistry() {
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        return schemeRegistry;
     }
 
     /**
@@ -201,13 +268,145 @@ public class AsyncHttpClient {
 
     /**
      * Overrides the threadpool implementation used when queuing/pooling
-     * requests. By default, Executors.newCachedThreadPool() is used.
+     * requests. By default, a {@link PriorityThreadPoolExecutor} with 10 workers
+     * and a queue of 256 requests is used.
      * @param threadPool an instance of {@link ThreadPoolExecutor} to use for queuing/pooling requests.
      */
     public void setThreadPool(ThreadPoolExecutor threadPool) {
         this.threadPool = threadPool;
     }
 
+    /**
+     * Sets the number of worker threads used for requests. Requests above the
+     * core size are queued, the pool only grows up to the maximum size when
+     * the queue of the thread pool is full.
+     * @param corePoolSize the number of workers used before requests are queued.
+     * @param maximumPoolSize the number of workers used once the queue is full.
+     */
+    public void setThreadPoolSize(int corePoolSize, int maximumPoolSize) {
+        if(corePoolSize <= 0 || maximumPoolSize < corePoolSize) {
+            throw new IllegalArgumentException("Invalid pool size: " + corePoolSize + "/" + maximumPoolSize);
+        }
+        // Keep core <= maximum at every step, the executor rejects it otherwise
+        if(maximumPoolSize < threadPool.getCorePoolSize()) {
+            threadPool.setCorePoolSize(corePoolSize);
+            threadPool.setMaximumPoolSize(maximumPoolSize);
+        } else {
+            threadPool.setMaximumPoolSize(maximumPoolSize);
+            threadPool.setCorePoolSize(corePoolSize);
+        }
+    }
+
+    /**
+     * Sets the number of worker threads used for requests, and the number of
+     * requests queued before the pool grows beyond the core size. Once the
+     * queue is full and the maximum number of workers busy, new requests are
+     * passed to the {@link RejectedExecutionHandler}.
+     * @param corePoolSize the number of workers used before requests are queued.
+     * @param maximumPoolSize the number of workers used once the queue is full.
+     * @param queueCapacity the number of requests which may wait in the queue.
+     * @throws IllegalStateException if a thread pool other than a {@link PriorityThreadPoolExecutor} was set.
+     */
+    public void setThreadPoolSize(int corePoolSize, int maximumPoolSize, int queueCapacity) {
+        if(!(threadPool instanceof PriorityThreadPoolExecutor)) {
+            throw new IllegalStateException("The queue capacity of a custom thread pool can't be changed");
+        }
+        setThreadPoolSize(corePoolSize, maximumPoolSize);
+        ((PriorityThreadPoolExecutor) threadPool).setQueueCapacity(queueCapacity);
+    }
+
+    /**
+     * Sets the policy used when a request can neither be queued nor run by
+     * the thread pool. By default, a RejectedExecutionException is thrown.
+     * @param rejectedHandler the handler to use for rejected requests.
+     */
+    public void setRejectedExecutionHandler(RejectedExecutionHandler rejectedHandler) {
+        threadPool.setRejectedExecutionHandler(rejectedHandler);
+    }
+
+    /**
+     * Sets how failed requests are retried. Retries wait with an exponential
+     * backoff, starting at the initial backoff and doubling up to the maximum
+     * backoff, with a random jitter so failed requests do not retry all at
+     * once. The thread pool is not blocked while a request waits for its retry.
+     * By default, 5 retries are made with a backoff of 1 to 16 seconds.
+     * @param maxRetries the maximum number of retries per request.
+     * @param initialBackoffMillis the delay before the first retry in milliseconds.
+     * @param maxBackoffMillis the upper limit for the delay between retries in milliseconds.
+     * @param maxElapsedMillis no retry is made after this many milliseconds since the first attempt.
+     */
+    public void setRetryPolicy(int maxRetries, int initialBackoffMillis, int maxBackoffMillis, int maxElapsedMillis) {
+        if(maxRetries < 0 || initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis || maxElapsedMillis < 0) {
+            throw new IllegalArgumentException("Invalid retry policy");
+        }
+        this.retryHandler = new RetryHandler(maxRetries, initialBackoffMillis, maxBackoffMillis, maxElapsedMillis);
+    }
+
+    RetryHandler getRetryHandler() {
+        return retryHandler;
+    }
+
+    /**
+     * Sets the circuit breaker which stops requests to hosts which keep
+     * failing. While the circuit of a host is open, requests to it fail right
+     * away with a {@link CircuitOpenException} and are not retried. By default,
+     * a circuit opens after 5 consecutive failures for 30 seconds.
+     * @param circuitBreaker the circuit breaker to use, or null to always send requests.
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Sets the budget which limits the retries of all requests of this client
+     * to a share of its requests. By default, 10% of the requests, and at
+     * least 10 retries, per 10 seconds may be retried.
+     * @param retryBudget the retry budget to use, or null to only limit retries per request.
+     */
+    public void setRetryBudget(RetryBudget retryBudget) {
+        this.retryBudget = retryBudget;
+    }
+
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    /**
+     * Enables hedging of GET requests: if no response arrived within the
+     * policy's delay, an identical request is sent on another connection and
+     * the first response is used. Hedges take a worker of the thread pool.
+     * By default, requests are not hedged.
+     * @param hedgePolicy the policy to use, or null to disable hedging.
+     */
+    public void setHedgePolicy(HedgePolicy hedgePolicy) {
+        this.hedgePolicy = hedgePolicy;
+    }
+
+    public HedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
+
+    /**
+     * Enables adaptive limiting of the requests in flight per host. The
+     * limit grows while response times stay low and shrinks when they rise
+     * or requests fail, and requests above it wait in a queue without
+     * holding a thread of the pool. Limits above the connections per route
+     * have no effect. By default, requests are only limited by the pool and
+     * the connections per route.
+     * @param concurrencyLimiter the limiter to use, or null to disable limiting.
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
     /**
      * Sets the User-Agent header to be sent with each request. By default,
      * "Android Asynchronous Http Client/VERSION (http://loopj.com/android-async-http/)" is used.
@@ -246,6 +445,39 @@ public class AsyncHttpClient {
         clientHeaderMap.put(header, value);
     }
 
+    /**
+     * Sets a disk cache for responses of GET requests. Responses are cached
+     * and revalidated as the server allows it with its caching headers. By
+     * default, responses are not cached.
+     * @param responseCache the cache to use, or null to disable caching.
+     */
+    public void setResponseCache(HttpResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * @return the response cache of this client, or null if responses are not cached.
+     */
+    public HttpResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Enables sharing of identical GET requests. While a GET request is in
+     * flight, further GET requests with the same URL and headers do not hit
+     * the network but receive the response of the request already in flight.
+     * Each response handler still gets its own copy of the response. By default,
+     * requests are not shared.
+     * <p>
+     * Requests which can be cancelled on their own, those started with a
+     * Context, a handler with a tag or a future, are never shared, so
+     * cancelling one request never cancels it for others.
+     * @param coalesceGetRequests true to share identical in-flight GET requests.
+     */
+    public void setCoalesceGetRequests(boolean coalesceGetRequests) {
+        this.coalesceGetRequests = coalesceGetRequests;
+    }
+
     /**
      * Sets basic authentication for the request. Uses AuthScope.ANY. This is the same as
      * setBasicAuth('username','password',AuthScope.ANY) 
@@ -278,21 +510,32 @@ public class AsyncHttpClient {
      * android Context. This method is intended to be used in the onDestroy
      * method of your android activities to destroy all requests which are no
      * longer required.
+     * <p>
+     * Active requests are aborted, which closes their connection right away
+     * instead of waiting for the response, and their handlers are notified with
+     * {@link AsyncHttpResponseHandler#onCancel()}.
      *
      * @param context the android Context instance associated to the request.
      * @param mayInterruptIfRunning specifies if active requests should be cancelled along with pending requests.
      */
     public void cancelRequests(Context context, boolean mayInterruptIfRunning) {
-        List<WeakReference<Future<?>>> requestList = requestMap.get(context);
-        if(requestList != null) {
-            for(WeakReference<Future<?>> requestRef : requestList) {
-                Future<?> request = requestRef.get();
-                if(request != null) {
-                    request.cancel(mayInterruptIfRunning);
-                }
-            }
+        cancelRequestsByTag(context, mayInterruptIfRunning);
+    }
+
+    /**
+     * Cancels any pending (or potentially active) requests whose handler was
+     * given the passed tag with {@link AsyncHttpResponseHandler#setTag(Object)}.
+     *
+     * @param tag the tag of the requests to cancel.
+     * @param mayInterruptIfRunning specifies if active requests should be cancelled along with pending requests.
+     */
+    public void cancelRequestsByTag(Object tag, boolean mayInterruptIfRunning) {
+        if(tag == null) {
+            return;
+        }
+        for(AsyncHttpRequest request : requestRegistry.removeAll(tag)) {
+            request.cancel(mayInterruptIfRunning);
         }
-        requestMap.remove(context);
     }
 
 
@@ -549,26 +792,214 @@ public class AsyncHttpClient {
     }
 
 
+    //
+    // HTTP requests returning futures
+    //
+
+    /**
+     * Perform a HTTP GET request without parameters, returning a future of its result.
+     * @param url the URL to send the request to.
+     * @return a future completed with the result once the response is received,
+     *         or failed if no response could be received.
+     */
+    public HttpFuture<HttpResult> getFuture(String url) {
+        return getFuture(null, url, null, null);
+    }
+
+    /**
+     * Perform a HTTP GET request with parameters, returning a future of its result.
+     * @param url the URL to send the request to.
+     * @param params additional GET parameters to send with the request.
+     * @return a future completed with the result once the response is received,
+     *         or failed if no response could be received.
+     */
+    public HttpFuture<HttpResult> getFuture(String url, RequestParams params) {
+        return getFuture(null, url, null, params);
+    }
+
+    /**
+     * Perform a HTTP GET request, returning a future of its result.
+     * @param context the Android Context which initiated the request.
+     * @param url the URL to send the request to.
+     * @param headers set headers only for this request
+     * @param params additional GET parameters to send with the request.
+     * @return a future completed with the result once the response is received,
+     *         or failed if no response could be received.
+     */
+    public HttpFuture<HttpResult> getFuture(Context context, String url, Header[] headers, RequestParams params) {
+        FutureResponseHandler responseHandler = new FutureResponseHandler();
+        get(context, url, headers, params, responseHandler);
+        return responseHandler.getFuture();
+    }
+
+    /**
+     * Perform a HTTP POST request with parameters, returning a future of its result.
+     * @param url the URL to send the request to.
+     * @param params additional POST parameters or files to send with the request.
+     * @return a future completed with the result once the response is received,
+     *         or failed if no response could be received.
+     */
+    public HttpFuture<HttpResult> postFuture(String url, RequestParams params) {
+        FutureResponseHandler responseHandler = new FutureResponseHandler();
+        post(null, url, params, responseHandler);
+        return responseHandler.getFuture();
+    }
+
+    /**
+     * Perform a HTTP POST request and track the Android Context which initiated the request, returning a future of its result.
+     * @param context the Android Context which initiated the request.
+     * @param url the URL to send the request to.
+     * @param headers set headers only for this request
+     * @param entity a raw {@link HttpEntity} to send with the request.
+     * @param contentType the content type of the payload you are sending.
+     * @return a future completed with the result once the response is received,
+     *         or failed if no response could be received.
+     */
+    public HttpFuture<HttpResult> postFuture(Context context, String url, Header[] headers, HttpEntity entity, String contentType) {
+        FutureResponseHandler responseHandler = new FutureResponseHandler();
+        post(context, url, headers, entity, contentType, responseHandler);
+        return responseHandler.getFuture();
+    }
+
+    /**
+     * Perform a HTTP PUT request with parameters, returning a future of its result.
+     * @param url the URL to send the request to.
+     * @param params additional PUT parameters or files to send with the request.
+     * @return a future completed with the result once the response is received,
+     *         or failed if no response could be received.
+     */
+    public HttpFuture<HttpResult> putFuture(String url, RequestParams params) {
+        FutureResponseHandler responseHandler = new FutureResponseHandler();
+        put(null, url, params, responseHandler);
+        return responseHandler.getFuture();
+    }
+
+    /**
+     * Perform a HTTP PUT request and track the Android Context which initiated the request, returning a future of its result.
+     * @param context the Android Context which initiated the request.
+     * @param url the URL to send the request to.
+     * @param headers set headers only for this request
+     * @param entity a raw {@link HttpEntity} to send with the request.
+     * @param contentType the content type of the payload you are sending.
+     * @return a future completed with the result once the response is received,
+     *         or failed if no response could be received.
+     */
+    public HttpFuture<HttpResult> putFuture(Context context, String url, Header[] headers, HttpEntity entity, String contentType) {
+        FutureResponseHandler responseHandler = new FutureResponseHandler();
+        put(context, url, headers, entity, contentType, responseHandler);
+        return responseHandler.getFuture();
+    }
+
+    /**
+     * Perform a HTTP DELETE request, returning a future of its result.
+     * @param url the URL to send the request to.
+     * @return a future completed with the result once the response is received,
+     *         or failed if no response could be received.
+     */
+    public HttpFuture<HttpResult> deleteFuture(String url) {
+        return deleteFuture(null, url, null);
+    }
+
+    /**
+     * Perform a HTTP DELETE request, returning a future of its result.
+     * @param context the Android Context which initiated the request.
+     * @param url the URL to send the request to.
+     * @param headers set one-time headers for this request
+     * @return a future completed with the result once the response is received,
+     *         or failed if no response could be received.
+     */
+    public HttpFuture<HttpResult> deleteFuture(Context context, String url, Header[] headers) {
+        FutureResponseHandler responseHandler = new FutureResponseHandler();
+        delete(context, url, headers, responseHandler);
+        return responseHandler.getFuture();
+    }
+
+
     // Private stuff
     protected void sendRequest(DefaultHttpClient client, HttpContext httpContext, HttpUriRequest uriRequest, String contentType, AsyncHttpResponseHandler responseHandler, Context context) {
         if(contentType != null) {
             uriRequest.addHeader("Content-Type", contentType);
         }
 
-        Future<?> request = threadPool.submit(new AsyncHttpRequest(client, httpContext, uriRequest, responseHandler));
+        AsyncHttpResponseHandler originalHandler = responseHandler;
+        String coalescingKey = null;
+
+        // A shared body is held in memory, which a handler streaming or spilling large bodies to disk does not want
+        if(coalesceGetRequests && responseHandler != null && "GET".equals(uriRequest.getMethod())
+                && !responseHandler.isStreaming() && responseHandler.getMemoryThreshold() == 0
+                && !isCancellable(responseHandler, context)) {
+            String key = getCoalescingKey(uriRequest);
+            CoalescingResponseHandler coalescingHandler = new CoalescingResponseHandler(key, inFlightRequests);
+            coalescingHandler.setPriority(responseHandler.getPriority());
+            coalescingHandler.setTimeouts(responseHandler.getTotalTimeout(), responseHandler.getConnectTimeout(), responseHandler.getReadTimeout());
+            coalescingHandler.addHandler(responseHandler);
+
+            CoalescingResponseHandler inFlight;
+            while((inFlight = inFlightRequests.putIfAbsent(key, coalescingHandler)) != null) {
+                if(inFlight.addHandler(responseHandler)) {
+                    // Identical request already in flight, its response is shared with this handler
+                    return;
+                }
+                // The request in flight completed in the meantime, this one takes its place unless another did
+                if(inFlightRequests.replace(key, inFlight, coalescingHandler)) {
+                    break;
+                }
+            }
+            responseHandler = coalescingHandler;
+            coalescingKey = key;
+        }
+
+        AsyncHttpRequest asyncRequest = new AsyncHttpRequest(client, httpContext, uriRequest, responseHandler, threadPool);
+        asyncRequest.setResponseCache(responseCache);
+        asyncRequest.setRetryHandler(retryHandler);
+        asyncRequest.setCircuitBreaker(circuitBreaker);
+        asyncRequest.setRetryBudget(retryBudget);
+        asyncRequest.setHedgePolicy(hedgePolicy);
+        asyncRequest.setConcurrencyLimiter(concurrencyLimiter);
+
+        // Registered before it runs, so it can't finish before it is registered
+        Object tag = originalHandler != null ? originalHandler.getTag() : null;
+        if(context != null && tag != null && !tag.equals(context)) {
+            asyncRequest.register(requestRegistry, context, tag);
+        } else if(context != null) {
+            asyncRequest.register(requestRegistry, context);
+        } else if(tag != null) {
+            asyncRequest.register(requestRegistry, tag);
+        }
 
-        if(context != null) {
-            // Add request to request map
-            List<WeakReference<Future<?>>> requestList = requestMap.get(context);
-            if(requestList == null) {
-                requestList = new LinkedList<WeakReference<Future<?>>>();
-                requestMap.put(context, requestList);
+        Future<?> request;
+        try {
+            request = threadPool.submit(asyncRequest);
+        } catch (RejectedExecutionException e) {
+            // The request never runs, so it must not stay registered or be joined by others
+            asyncRequest.unregister();
+            if(coalescingKey != null) {
+                inFlightRequests.remove(coalescingKey, responseHandler);
             }
+            throw e;
+        }
+        asyncRequest.setFuture(request);
 
-            requestList.add(new WeakReference<Future<?>>(request));
+        if(originalHandler instanceof FutureResponseHandler) {
+            // Cancelling the returned future cancels the request
+            ((FutureResponseHandler) originalHandler).getFuture().addUpstream(request);
+        }
+    }
 
-            // TODO: Remove dead weakrefs from requestLists?
+    /**
+     * @return true if the request can be cancelled on its own, which a shared request can't.
+     */
+    private static boolean isCancellable(AsyncHttpResponseHandler responseHandler, Context context) {
+        return context != null || responseHandler.getTag() != null || responseHandler instanceof FutureResponseHandler;
+    }
+
+    private String getCoalescingKey(HttpUriRequest uriRequest) {
+        StringBuilder key = new StringBuilder(uriRequest.getMethod());
+        key.append(' ').append(uriRequest.getURI());
+        for(Header header : uriRequest.getAllHeaders()) {
+            key.append('\n').append(header.getName()).append(": ").append(header.getValue());
         }
+        return key.toString();
     }
 
     public static String getUrlWithQueryString(String url, RequestParams params) {
@@ -602,6 +1033,28 @@ public class AsyncHttpClient {
         return requestBase;
     }
 
+    /**
+     * Completes a future with the result of the request, on the thread running the request.
+     */
+    private static class FutureResponseHandler extends ResultResponseHandler {
+        private final HttpFuture<HttpResult> future = new HttpFuture<HttpResult>();
+
+        @Override
+        protected void onResult(HttpResult result) {
+            if(result.getError() instanceof CancellationException) {
+                future.cancel(false);
+            } else if(result.getStatusCode() == 0) {
+                future.fail(result.getError());
+            } else {
+                future.complete(result);
+            }
+        }
+
+        public HttpFuture<HttpResult> getFuture() {
+            return future;
+        }
+    }
+
     private static class InflatingEntity extends HttpEntityWrapper {
         public InflatingEntity(HttpEntity wrapped) {
             super(wrapped);
@@ -18,105 +18,678 @@
 
 package com.loopj.android.http;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
 
+import android.os.SystemClock;
+
 class AsyncHttpRequest implements Runnable {
     private final AbstractHttpClient client;
     private final HttpContext context;
     private final HttpUriRequest request;
     private final AsyncHttpResponseHandler responseHandler;
+    private final Executor retryExecutor;
     private boolean isBinaryRequest;
     private int executionCount;
+    private volatile boolean started;
+    private long startTime;
+    private volatile boolean cancelled;
+    private boolean finished;
+    // Set once the response is handed to the handler, the outcome is decided then
+    private boolean delivering;
+    private volatile boolean abortedOnCancel;
+    // Time at which the request is given up, 0 for none
+    private final long deadline;
+    private volatile boolean expired;
+    private ScheduledFuture<?> deadlineTimer;
+    private volatile Future<?> future;
+    private HttpResponseCache responseCache;
+    private CircuitBreaker circuitBreaker;
+    private RetryBudget retryBudget;
+    // Decides on retries, the client itself is set up not to retry
+    private HttpRequestRetryHandler retryHandler;
+    private HedgePolicy hedgePolicy;
+    private ConcurrencyLimiter limiter;
+    // Set while the attempt holds a permit of the limiter
+    private volatile boolean permitHeld;
+    private long attemptLatency = -1;
+    private boolean attemptFailed;
+    // The hedge race of the attempt in flight, abandoned together with the request
+    private volatile Hedge hedge;
+    // Set once a winning hedge aborted the request, which can't be sent again then
+    private volatile boolean abortedByHedge;
+    private RequestRegistry registry;
+    private Object[] tags;
 
+    /**
+     * Creates a request which waits for its retries on the calling thread.
+     */
     public AsyncHttpRequest(AbstractHttpClient client, HttpContext context, HttpUriRequest request, AsyncHttpResponseHandler responseHandler) {
+        this(client, context, request, responseHandler, null);
+    }
+
+    /**
+     * Creates a request which, instead of waiting for a retry, is put back to
+     * the retry executor once the retry delay has passed.
+     */
+    public AsyncHttpRequest(AbstractHttpClient client, HttpContext context, HttpUriRequest request, AsyncHttpResponseHandler responseHandler, Executor retryExecutor) {
         this.client = client;
         this.context = context;
         this.request = request;
         this.responseHandler = responseHandler;
+        this.retryExecutor = retryExecutor;
+        this.retryHandler = client.getHttpRequestRetryHandler();
+        if(responseHandler != null && responseHandler.getTotalTimeout() > 0) {
+            // Time spent in the queue counts as well
+            this.deadline = SystemClock.elapsedRealtime() + responseHandler.getTotalTimeout();
+        } else {
+            this.deadline = 0;
+        }
         if(responseHandler instanceof BinaryHttpResponseHandler) {
             this.isBinaryRequest = true;
         }
     }
 
+    public RequestPriority getPriority() {
+        if(responseHandler != null) {
+            return responseHandler.getPriority();
+        }
+        return RequestPriority.NORMAL;
+    }
+
+    /**
+     * Cancels the request. A request in progress is aborted, which closes its
+     * socket right away and releases its connection, and a scheduled retry
+     * is dropped. The handler is notified with
+     * {@link AsyncHttpResponseHandler#onCancel()} instead of success or failure.
+     * <p>
+     * Once the response is handed to the handler, its outcome is decided and
+     * the request is not cancelled anymore. A body which is still being read
+     * is dropped though, and the handler reports that as a failure.
+     * @param mayInterruptIfRunning false to only cancel the request if it has not started yet.
+     */
+    public void cancel(boolean mayInterruptIfRunning) {
+        boolean delivering;
+        synchronized(this) {
+            if(cancelled || finished || (started && !mayInterruptIfRunning)) {
+                return;
+            }
+            delivering = this.delivering;
+            if(delivering) {
+                abortedOnCancel = true;
+            } else {
+                cancelled = true;
+            }
+        }
+        if(delivering) {
+            abortRequests();
+            responseHandler.onRequestAborted();
+            return;
+        }
+        stopDeadlineTimer();
+        unregister();
+        abortRequests();
+        Future<?> future = this.future;
+        if(future != null) {
+            future.cancel(mayInterruptIfRunning);
+        }
+        if(responseHandler != null) {
+            responseHandler.sendCancelMessage();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Decides that the outcome of the request is reported, unless it was
+     * cancelled. Has to be called before anything but start is sent to the handler.
+     * @return false if the request was cancelled and nothing must be reported.
+     */
+    private boolean beginDelivery() {
+        synchronized(this) {
+            if(cancelled) {
+                return false;
+            }
+            delivering = true;
+        }
+        return true;
+    }
+
+    /**
+     * Marks the request as done, unless it was cancelled.
+     * @return false if the request was cancelled and its outcome must not be reported.
+     */
+    private boolean markFinished() {
+        synchronized(this) {
+            if(cancelled) {
+                return false;
+            }
+            finished = true;
+        }
+        stopDeadlineTimer();
+        unregister();
+        return true;
+    }
+
+    /**
+     * Aborts the request once its deadline has passed, the thread running it
+     * then reports the timeout. A request waiting for a retry is not retried
+     * past its deadline, so it needs no abort. A request waiting for a permit
+     * of the limiter leaves its queue, and the timeout is reported right away.
+     */
+    private void startDeadlineTimer() {
+        if(deadline == 0) {
+            return;
+        }
+        ScheduledFuture<?> timer = RequestTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized(AsyncHttpRequest.this) {
+                    if(cancelled || finished) {
+                        return;
+                    }
+                    expired = true;
+                }
+                abortRequests();
+                if(responseHandler != null) {
+                    // A paused reader does not read, so it would not see the abort
+                    responseHandler.onRequestAborted();
+                }
+                String host = request.getURI().getHost();
+                if(limiter != null && host != null && limiter.remove(host, AsyncHttpRequest.this)) {
+                    // Waiting for a permit, no thread runs the request to report the timeout
+                    sendFailure(newDeadlineException());
+                }
+            }
+        }, Math.max(0, deadline - SystemClock.elapsedRealtime()));
+        synchronized(this) {
+            deadlineTimer = timer;
+        }
+    }
+
+    private void abortRequests() {
+        request.abort();
+        Hedge hedge = this.hedge;
+        if(hedge != null) {
+            hedge.abandon();
+        }
+    }
+
+    private void stopDeadlineTimer() {
+        ScheduledFuture<?> timer;
+        synchronized(this) {
+            timer = deadlineTimer;
+            deadlineTimer = null;
+        }
+        if(timer != null) {
+            timer.cancel(false);
+        }
+    }
+
+    private SocketTimeoutException newDeadlineException() {
+        return new SocketTimeoutException("Request did not complete within " + responseHandler.getTotalTimeout() + " ms");
+    }
+
+    /**
+     * Applies the connect and read timeouts of the handler to the next
+     * attempt, shortened to the time left until the deadline.
+     */
+    private void applyTimeouts() throws SocketTimeoutException {
+        if(responseHandler == null) {
+            return;
+        }
+        long remaining = 0;
+        if(deadline > 0) {
+            remaining = deadline - SystemClock.elapsedRealtime();
+            if(remaining <= 0 || expired) {
+                throw newDeadlineException();
+            }
+        }
+        HttpParams params = request.getParams();
+        int connectTimeout = responseHandler.getConnectTimeout();
+        if(connectTimeout == 0) {
+            connectTimeout = HttpConnectionParams.getConnectionTimeout(client.getParams());
+        }
+        int readTimeout = responseHandler.getReadTimeout();
+        if(readTimeout == 0) {
+            readTimeout = HttpConnectionParams.getSoTimeout(client.getParams());
+        }
+        if(remaining > 0) {
+            connectTimeout = (int) (connectTimeout > 0 ? Math.min(connectTimeout, remaining) : remaining);
+            readTimeout = (int) (readTimeout > 0 ? Math.min(readTimeout, remaining) : remaining);
+            // Also bounds the wait for a pooled connection
+            ConnManagerParams.setTimeout(params, remaining);
+        }
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, readTimeout);
+    }
+
+    /**
+     * Adds the request to a registry under the given tags, it removes itself
+     * once it is done or cancelled. Has to be called before the request is run.
+     */
+    void register(RequestRegistry registry, Object... tags) {
+        this.registry = registry;
+        this.tags = tags;
+        for(Object tag : tags) {
+            registry.register(tag, this);
+        }
+    }
+
+    void unregister() {
+        if(registry != null) {
+            for(Object tag : tags) {
+                registry.unregister(tag, this);
+            }
+        }
+    }
+
+    /**
+     * Sets the future of the first attempt, so cancelling the request also
+     * interrupts its thread. Clients only keep weak references to the request,
+     * the future is reachable through it while a retry is scheduled.
+     */
+    void setFuture(Future<?> future) {
+        this.future = future;
+    }
+
+    void setResponseCache(HttpResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    void setRetryBudget(RetryBudget retryBudget) {
+        this.retryBudget = retryBudget;
+    }
+
+    void setRetryHandler(RetryHandler retryHandler) {
+        this.retryHandler = retryHandler;
+    }
+
+    /**
+     * Hedges GET requests with the given policy, hedges are run by the retry executor.
+     */
+    void setHedgePolicy(HedgePolicy hedgePolicy) {
+        this.hedgePolicy = hedgePolicy;
+    }
+
+    /**
+     * Limits the requests in flight per host, only for requests with a retry executor.
+     */
+    void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Called by the limiter once the queued request got a permit, it is run again.
+     */
+    void onPermit() {
+        permitHeld = true;
+        if(cancelled) {
+            releasePermit();
+            return;
+        }
+        try {
+            retryExecutor.execute(this);
+        } catch (RejectedExecutionException e) {
+            releasePermit();
+            IOException ex = new IOException("Request rejected by the thread pool");
+            ex.initCause(e);
+            sendFailure(ex);
+        }
+    }
+
+    /**
+     * @return false if the request was queued by the limiter, it is run again once it got a permit.
+     */
+    private boolean acquirePermit() {
+        String host = request.getURI().getHost();
+        if(limiter == null || retryExecutor == null || host == null || permitHeld) {
+            return true;
+        }
+        if(!limiter.acquire(host, this)) {
+            return false;
+        }
+        permitHeld = true;
+        return true;
+    }
+
+    private void releasePermit() {
+        if(permitHeld) {
+            permitHeld = false;
+            limiter.release(request.getURI().getHost(), attemptLatency, attemptFailed);
+            attemptLatency = -1;
+            attemptFailed = false;
+        }
+    }
+
     @Override
     public void run() {
+        if(cancelled) {
+            releasePermit();
+            return;
+        }
+        boolean retryScheduled = false;
         try {
-            if(responseHandler != null){
-                responseHandler.sendStartMessage();
+            // Retries run this again, start is only sent for the first attempt
+            if(!started) {
+                started = true;
+                startTime = SystemClock.elapsedRealtime();
+                if(retryBudget != null) {
+                    retryBudget.onRequest();
+                }
+                startDeadlineTimer();
+                if(responseHandler != null){
+                    responseHandler.sendStartMessage();
+                }
             }
 
-            makeRequestWithRetries();
+            if(!acquirePermit()) {
+                return;
+            }
 
-            if(responseHandler != null) {
-                responseHandler.sendFinishMessage();
+            if(makeRequestWithRetries()) {
+                if(markFinished() && responseHandler != null) {
+                    responseHandler.sendFinishMessage();
+                }
+            } else {
+                retryScheduled = true;
             }
         } catch (IOException e) {
-            if(responseHandler != null) {
-                responseHandler.sendFinishMessage();
-                if(this.isBinaryRequest) {
-                    responseHandler.sendFailureMessage(e, (byte[]) null);
-                } else {
-                    responseHandler.sendFailureMessage(e, (String) null);
-                }
+            sendFailure(e);
+        } catch (RuntimeException e) {
+            boolean reported;
+            synchronized(this) {
+                reported = finished;
+            }
+            if(reported) {
+                // Thrown by the handler after the outcome was sent
+                throw e;
+            }
+            // Still reported, so the request leaves the registry and the handler is not left waiting
+            IOException failure = new IOException("Request failed: " + e);
+            failure.initCause(e);
+            sendFailure(failure);
+        } finally {
+            // A scheduled retry released the permit already, and may hold a new one by now
+            if(!retryScheduled) {
+                releasePermit();
+            }
+        }
+    }
+
+    private void sendFailure(IOException e) {
+        if(markFinished() && responseHandler != null) {
+            responseHandler.sendFinishMessage();
+            if(this.isBinaryRequest) {
+                responseHandler.sendFailureMessage(e, (byte[]) null);
+            } else {
+                responseHandler.sendFailureMessage(e, (String) null);
             }
         }
     }
 
     private void makeRequest() throws IOException {
-        if(!Thread.currentThread().isInterrupted()) {
+        if(!cancelled && !Thread.currentThread().isInterrupted()) {
+        	String host = request.getURI().getHost();
+        	boolean guarded = circuitBreaker != null && host != null;
+        	if(guarded && !circuitBreaker.allowRequest(host)) {
+        		throw new CircuitOpenException(host);
+        	}
         	try {
-        		HttpResponse response = client.execute(request, context);
+        		if(responseHandler != null) {
+        			responseHandler.prepareRequest(request);
+        		}
+        		HttpResponse response;
+        		long sentAt = SystemClock.elapsedRealtime();
+        		if(hedgePolicy != null && retryExecutor != null && host != null && "GET".equals(request.getMethod())) {
+        			// Read here, as the hedge is copied on the timer thread
+        			response = executeHedged(host, request.getAllHeaders());
+        		} else {
+        			response = execute(request, context);
+        		}
+        		if(guarded) {
+        			if(response.getStatusLine().getStatusCode() >= 500) {
+        				circuitBreaker.onFailure(host);
+        			} else {
+        				circuitBreaker.onSuccess(host);
+        			}
+        		}
+        		int statusCode = response.getStatusLine().getStatusCode();
+        		attemptLatency = SystemClock.elapsedRealtime() - sentAt;
+        		attemptFailed = statusCode >= 500 || statusCode == 429;
+        		if(statusCode == 429 || statusCode == 503) {
+        			long retryAfter = HostThrottle.parseRetryAfter(response);
+        			if(retryAfter >= 0 && host != null) {
+        				// The block holds for every client, so a far off Retry-After must not lock the host out for longer than requests would retry
+        				HostThrottle.block(host, Math.min(retryAfter, getMaxElapsedMillis(retryHandler)));
+        			}
+        			long delay = getThrottledRetryDelay(retryAfter);
+        			if(delay >= 0) {
+        				// Retried, so the response is dropped and its connection released
+        				HttpEntity entity = response.getEntity();
+        				if(entity != null) {
+        					entity.consumeContent();
+        				}
+        				throw new ThrottledRetry(delay);
+        			}
+        		}
+        		if(response.getEntity() != null) {
+        			response.setEntity(new RequestEntity(response.getEntity()));
+        		}
         		if(!Thread.currentThread().isInterrupted()) {
-        			if(responseHandler != null) {
+        			if(responseHandler != null && beginDelivery()) {
         				responseHandler.sendResponseMessage(response);
         			}
         		} else{
         			//TODO: should raise InterruptedException? this block is reached whenever the request is cancelled before its response is received
         		}
+        	} catch (ThrottledRetry e) {
+        		throw e;
         	} catch (IOException e) {
-        		if(!Thread.currentThread().isInterrupted()) {
+        		if(expired) {
+        			throw newDeadlineException();
+        		}
+        		// An aborted request fails with an IOException, that is no failure
+        		if(!cancelled && !Thread.currentThread().isInterrupted()) {
+        			attemptFailed = true;
+        			if(guarded) {
+        				circuitBreaker.onFailure(host);
+        			}
         			throw e;
         		}
         	}
         }
     }
 
-    private void makeRequestWithRetries() throws ConnectException {
+    private HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+        if(responseCache != null) {
+            return responseCache.execute(client, request, context);
+        }
+        return client.execute(request, context);
+    }
+
+    /**
+     * Executes the request, and sends a hedge if no response arrived within
+     * the hedge delay. The first response is returned, the other request is
+     * aborted, which releases its connection. Hedges are not counted by the
+     * circuit breaker and the concurrency limit, they run under the request's.
+     */
+    private HttpResponse executeHedged(final String host, final Header[] headers) throws IOException {
+        final Hedge hedge = new Hedge();
+        this.hedge = hedge;
+        if(cancelled || expired) {
+            // Cancelled before the race was visible, the abort may have missed it
+            hedge.abandon();
+        }
+        long sentAt = SystemClock.elapsedRealtime();
+        ScheduledFuture<?> timer = RequestTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                startHedge(hedge, headers);
+            }
+        }, hedgePolicy.onRequest(host));
+
+        HttpResponse response;
+        try {
+            response = execute(request, context);
+        } catch (IOException e) {
+            timer.cancel(false);
+            // Either aborted as the hedge won, or failed while the hedge may still succeed
+            response = hedge.awaitHedge(e, deadline);
+            hedgePolicy.onResponse(host, SystemClock.elapsedRealtime() - sentAt);
+            return response;
+        } catch (RuntimeException e) {
+            timer.cancel(false);
+            hedge.abandon();
+            throw e;
+        }
+        timer.cancel(false);
+        if(!hedge.offer(response, false)) {
+            // The hedge won at the same time
+            consume(response);
+            response = hedge.awaitHedge(null, deadline);
+        }
+        hedgePolicy.onResponse(host, SystemClock.elapsedRealtime() - sentAt);
+        return response;
+    }
+
+    private void startHedge(final Hedge hedge, Header[] headers) {
+        if(cancelled || expired || !hedge.isPending() || !hedgePolicy.tryHedge()) {
+            return;
+        }
+        final HttpGet copy = new HttpGet(request.getURI());
+        copy.setHeaders(headers);
+        copy.setParams(request.getParams());
+        if(!hedge.start(copy)) {
+            return;
+        }
+        try {
+            retryExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if(!hedge.begin()) {
+                        // Given up while it was queued
+                        return;
+                    }
+                    try {
+                        HttpResponse response = execute(copy, new BasicHttpContext(context));
+                        if(hedge.offer(response, true)) {
+                            abortedByHedge = true;
+                            request.abort();
+                        } else {
+                            consume(response);
+                        }
+                    } catch (IOException e) {
+                        hedge.fail(e);
+                    } catch (RuntimeException e) {
+                        hedge.fail(new IOException("Hedge failed: " + e));
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            hedge.fail(new IOException("Hedge rejected by the thread pool"));
+        }
+    }
+
+    private static void consume(HttpResponse response) {
+        HttpEntity entity = response.getEntity();
+        if(entity != null) {
+            try {
+                entity.consumeContent();
+            } catch (IOException e) {
+                // The connection is closed instead of reused
+            }
+        }
+    }
+
+    /**
+     * @return true if the request is done, false if it was scheduled for a retry.
+     */
+    private boolean makeRequestWithRetries() throws IOException {
         // This is an additional layer of retry logic lifted from droid-fu
         // See: https://github.com/kaeppler/droid-fu/blob/master/src/main/java/com/github/droidfu/http/BetterHttpRequestBase.java
         boolean retry = true;
         IOException cause = null;
-        HttpRequestRetryHandler retryHandler = client.getHttpRequestRetryHandler();
         while (retry) {
+            String host = request.getURI().getHost();
+            long throttled = host != null ? HostThrottle.getRemainingMillis(host) : 0;
+            if(throttled > 0) {
+                // The host asked to wait, this does not count as an attempt
+                if(!hasTimeFor(throttled, retryHandler)) {
+                    throw new ThrottledException(host, throttled);
+                }
+                if(retryExecutor != null) {
+                    scheduleRetry(throttled);
+                    return false;
+                }
+                SystemClock.sleep(throttled);
+            }
+            applyTimeouts();
+
             try {
                 makeRequest();
-                return;
+                return true;
+            } catch (CircuitOpenException e) {
+                // Fails right away, a retry would not be sent either
+                throw e;
+            } catch (ThrottledRetry e) {
+                // Checked before the response was dropped, it is retried after the delay it was given
+                executionCount++;
+                if(retryExecutor != null) {
+                    scheduleRetry(e.delay);
+                    return false;
+                }
+                SystemClock.sleep(e.delay);
+                continue;
             } catch (UnknownHostException e) {
-		        if(responseHandler != null) {
+		        if(responseHandler != null && beginDelivery()) {
 		            responseHandler.sendFailureMessage(e, "can't resolve host");
 		        }
-	        	return;
+	        	return true;
             }catch (SocketException e){
                 // Added to detect host unreachable
-                if(responseHandler != null) {
+                if(responseHandler != null && beginDelivery()) {
                     responseHandler.sendFailureMessage(e, "can't resolve host");
                 }
-                return;
+                return true;
             }catch (SocketTimeoutException e){
-                if(responseHandler != null) {
+                if(responseHandler != null && beginDelivery()) {
                     responseHandler.sendFailureMessage(e, "socket time out");
                 }
-                return;
+                return true;
             } catch (IOException e) {
                 cause = e;
                 retry = retryHandler.retryRequest(cause, ++executionCount, context);
@@ -127,6 +700,23 @@ class AsyncHttpRequest implements Runnable {
                 cause = new IOException("NPE in HttpClient" + e.getMessage());
                 retry = retryHandler.retryRequest(cause, ++executionCount, context);
             }
+
+            if(retry && !cancelled && !mayRetry()) {
+                retry = false;
+            }
+
+            if(retry && !cancelled) {
+                long delay = getRetryDelay(retryHandler);
+                if(delay < 0) {
+                    // Out of time for another attempt
+                    retry = false;
+                } else if(retryExecutor != null) {
+                    scheduleRetry(delay);
+                    return false;
+                } else {
+                    SystemClock.sleep(delay);
+                }
+            }
         }
 
         // no retries left, crap out with exception
@@ -134,4 +724,323 @@ class AsyncHttpRequest implements Runnable {
         ex.initCause(cause);
         throw ex;
     }
+
+    /**
+     * @return false if the host's circuit is open, the retry budget is used up or the request was aborted by its hedge.
+     */
+    private boolean mayRetry() {
+        if(abortedByHedge) {
+            return false;
+        }
+        String host = request.getURI().getHost();
+        if(circuitBreaker != null && host != null && circuitBreaker.getState(host) == CircuitBreaker.State.OPEN) {
+            return false;
+        }
+        return retryBudget == null || retryBudget.tryRetry();
+    }
+
+    /**
+     * Decides if a 429 or 503 response is retried.
+     * @param retryAfter the delay the server asked for, or -1 if it did not.
+     * @return the delay before the retry, or -1 if the response is not retried.
+     */
+    private long getThrottledRetryDelay(long retryAfter) {
+        if(cancelled || !(retryHandler instanceof RetryHandler) || !isRepeatable()) {
+            return -1;
+        }
+        RetryHandler backoffHandler = (RetryHandler) retryHandler;
+        if(executionCount + 1 > backoffHandler.getMaxRetries()) {
+            return -1;
+        }
+        long delay = retryAfter >= 0 ? retryAfter : backoffHandler.getRetryDelay(executionCount + 1);
+        if(!hasTimeFor(delay, retryHandler) || !mayRetry()) {
+            return -1;
+        }
+        return delay;
+    }
+
+    private boolean isRepeatable() {
+        if(request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            return entity == null || entity.isRepeatable();
+        }
+        return true;
+    }
+
+    private static long getMaxElapsedMillis(HttpRequestRetryHandler retryHandler) {
+        if(retryHandler instanceof RetryHandler) {
+            return ((RetryHandler) retryHandler).getMaxElapsedMillis();
+        }
+        return RetryHandler.DEFAULT_MAX_ELAPSED_MILLIS;
+    }
+
+    /**
+     * @return false if another attempt after the given delay would exceed the maximum elapsed time or the deadline.
+     */
+    private boolean hasTimeFor(long delay, HttpRequestRetryHandler retryHandler) {
+        long now = SystemClock.elapsedRealtime();
+        if(deadline > 0 && now + delay >= deadline) {
+            return false;
+        }
+        return !(retryHandler instanceof RetryHandler) || now - startTime + delay <= getMaxElapsedMillis(retryHandler);
+    }
+
+    private long getRetryDelay(HttpRequestRetryHandler retryHandler) {
+        long delay = 0;
+        if(retryHandler instanceof RetryHandler) {
+            delay = ((RetryHandler) retryHandler).getRetryDelay(executionCount);
+        }
+        return hasTimeFor(delay, retryHandler) ? delay : -1;
+    }
+
+    private void scheduleRetry(long delay) {
+        // The permit is not held while waiting, the retry takes a new one
+        releasePermit();
+        RequestTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if(cancelled) {
+                    return;
+                }
+                try {
+                    retryExecutor.execute(AsyncHttpRequest.this);
+                } catch (RejectedExecutionException e) {
+                    IOException ex = new IOException("Retry rejected by the thread pool");
+                    ex.initCause(e);
+                    sendFailure(ex);
+                }
+            }
+        }, delay);
+    }
+
+    /**
+     * Thrown by a 429 or 503 response which is retried after the given delay.
+     */
+    private static class ThrottledRetry extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final long delay;
+
+        ThrottledRetry(long delay) {
+            this.delay = delay;
+        }
+    }
+
+    /**
+     * The body stream of a {@link RequestEntity}. It passes on aborts of the
+     * connection, so readers which stop early can drop the connection instead
+     * of reading the rest of the body.
+     */
+    class RequestInputStream extends FilterInputStream implements ConnectionReleaseTrigger {
+        RequestInputStream(InputStream in) {
+            super(in);
+        }
+
+        /**
+         * @return true if the request was aborted at its deadline or on cancel, reading then fails.
+         */
+        boolean isAborted() {
+            return expired || abortedOnCancel;
+        }
+
+        /**
+         * @return the error a read fails with once the request was aborted.
+         */
+        IOException newAbortException() {
+            if(expired) {
+                return newDeadlineException();
+            }
+            return new InterruptedIOException("Request cancelled");
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException e) {
+                throw isAborted() ? newAbortException() : e;
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            try {
+                return super.read(buffer, offset, length);
+            } catch (IOException e) {
+                throw isAborted() ? newAbortException() : e;
+            }
+        }
+
+        @Override
+        public void releaseConnection() throws IOException {
+            if(in instanceof ConnectionReleaseTrigger) {
+                ((ConnectionReleaseTrigger) in).releaseConnection();
+            } else {
+                close();
+            }
+        }
+
+        @Override
+        public void abortConnection() throws IOException {
+            // Wrappers such as a gzip stream may hide the connection, and
+            // closing them reads the rest of the body, the request is aborted instead
+            abortRequests();
+            try {
+                if(in instanceof ConnectionReleaseTrigger) {
+                    ((ConnectionReleaseTrigger) in).abortConnection();
+                } else {
+                    close();
+                }
+            } catch (IOException e) {
+                // The connection is gone already
+            }
+        }
+    }
+
+    /**
+     * Reports a body read which failed as the request was aborted, at its
+     * deadline or on cancel, as timeout or cancel instead of as closed socket.
+     */
+    private class RequestEntity extends HttpEntityWrapper {
+        RequestEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new RequestInputStream(super.getContent());
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            InputStream in = getContent();
+            try {
+                byte[] buffer = new byte[4096];
+                int read;
+                while((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * The race between a request and its hedge, the first response wins.
+     */
+    private static class Hedge {
+        private boolean decided;
+        private HttpUriRequest request;
+        private boolean running;
+        private boolean hedgeDone;
+        private HttpResponse hedgeResponse;
+
+        synchronized boolean isPending() {
+            return !decided;
+        }
+
+        /**
+         * @return false if the race was decided already and no hedge is needed.
+         */
+        synchronized boolean start(HttpUriRequest request) {
+            if(decided) {
+                return false;
+            }
+            this.request = request;
+            return true;
+        }
+
+        /**
+         * Offers a response of the request or its hedge, the loser is aborted.
+         * @return true if the response won.
+         */
+        boolean offer(HttpResponse response, boolean fromHedge) {
+            HttpUriRequest loser;
+            synchronized(this) {
+                if(decided) {
+                    return false;
+                }
+                decided = true;
+                if(fromHedge) {
+                    hedgeDone = true;
+                    hedgeResponse = response;
+                    notifyAll();
+                    return true;
+                }
+                loser = request;
+            }
+            if(loser != null) {
+                loser.abort();
+            }
+            return true;
+        }
+
+        /**
+         * Called once the hedge leaves the queue of the thread pool.
+         * @return false if the race was decided already and the hedge must not be sent.
+         */
+        synchronized boolean begin() {
+            if(decided) {
+                return false;
+            }
+            running = true;
+            return true;
+        }
+
+        synchronized void fail(IOException e) {
+            hedgeDone = true;
+            notifyAll();
+        }
+
+        /**
+         * Gives up on the race, a hedge in flight is aborted and its response discarded.
+         */
+        synchronized void abandon() {
+            decided = true;
+            if(request != null) {
+                request.abort();
+            }
+            notifyAll();
+        }
+
+        /**
+         * Waits for the hedge once the request failed or lost. A hedge still
+         * queued in the thread pool is given up instead, it may be queued
+         * behind the very thread waiting for it.
+         * @param error the failure of the request, thrown if the hedge fails too.
+         * @param deadline the time at which the wait is given up, 0 for none.
+         */
+        synchronized HttpResponse awaitHedge(IOException error, long deadline) throws IOException {
+            while(!hedgeDone) {
+                if(!running || decided && hedgeResponse == null) {
+                    // Not sent yet, or given up on by a cancel or the deadline
+                    abandon();
+                    break;
+                }
+                long remaining = 0;
+                if(deadline > 0) {
+                    remaining = deadline - SystemClock.elapsedRealtime();
+                    if(remaining <= 0) {
+                        abandon();
+                        break;
+                    }
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    abandon();
+                    break;
+                }
+            }
+            if(hedgeResponse != null) {
+                return hedgeResponse;
+            }
+            if(error == null) {
+                error = new IOException("Hedge failed");
+            }
+            throw error;
+        }
+    }
 }
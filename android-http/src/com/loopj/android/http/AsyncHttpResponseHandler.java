@@ -22,11 +22,13 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import org.apache.http.Header;
+import java.io.File;
 import java.io.IOException;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
 import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.util.EntityUtils;
 
@@ -74,8 +76,17 @@ public class AsyncHttpResponseHandler {
     protected static final int FAILURE_MESSAGE = 1;
     protected static final int START_MESSAGE = 2;
     protected static final int FINISH_MESSAGE = 3;
+    protected static final int CANCEL_MESSAGE = 4;
+    protected static final int SUCCESS_BODY_MESSAGE = 5;
 
     private Handler handler;
+    private RequestPriority priority = RequestPriority.NORMAL;
+    private Object tag;
+    private int totalTimeout;
+    private int connectTimeout;
+    private int readTimeout;
+    private int memoryThreshold;
+    private File spillDirectory;
 
     /**
      * Creates a new AsyncHttpResponseHandler
@@ -92,6 +103,114 @@ public class AsyncHttpResponseHandler {
         }
     }
 
+    /**
+     * Sets the priority with which the request of this handler is taken
+     * from {@link AsyncHttpClient}'s queue. By default, {@link RequestPriority#NORMAL} is used.
+     * @param priority the priority of the request.
+     */
+    public void setPriority(RequestPriority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * @return the priority of the request of this handler.
+     */
+    public RequestPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets a tag for the request of this handler, so it can be cancelled
+     * together with other requests of the same tag with
+     * {@link AsyncHttpClient#cancelRequestsByTag(Object, boolean)}.
+     * Tags are compared with equals().
+     * @param tag the tag of the request, or null for none.
+     */
+    public void setTag(Object tag) {
+        this.tag = tag;
+    }
+
+    /**
+     * @return the tag of the request of this handler, or null for none.
+     */
+    public Object getTag() {
+        return tag;
+    }
+
+    /**
+     * Sets the time the request of this handler may take. Unlike
+     * {@link AsyncHttpClient#setTimeout(int)}, which applies to each connect
+     * and read of each attempt, the total timeout is a deadline for the whole
+     * request, from being queued through all retries to the end of the body.
+     * Once it has passed, the request is aborted and fails with a
+     * {@link java.net.SocketTimeoutException}, and no further retry is made.
+     * The connect and read timeouts apply to each attempt and are shortened
+     * to the time left until the deadline.
+     * @param totalTimeout the time in milliseconds the whole request may take, or 0 for no limit.
+     * @param connectTimeout the time in milliseconds to wait for a connection, or 0 for the client's timeout.
+     * @param readTimeout the time in milliseconds to wait for data, or 0 for the client's timeout.
+     */
+    public void setTimeouts(int totalTimeout, int connectTimeout, int readTimeout) {
+        if(totalTimeout < 0 || connectTimeout < 0 || readTimeout < 0) {
+            throw new IllegalArgumentException("Timeouts must not be negative");
+        }
+        this.totalTimeout = totalTimeout;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * @return the time in milliseconds the whole request may take, 0 for no limit.
+     */
+    public int getTotalTimeout() {
+        return totalTimeout;
+    }
+
+    /**
+     * @return the connect timeout per attempt in milliseconds, 0 for the client's timeout.
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * @return the read timeout per attempt in milliseconds, 0 for the client's timeout.
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Limits how large a response body is read into memory. Larger bodies
+     * are written to a temporary file instead, and passed to
+     * {@link #onSuccess(int, Header[], ResponseBody)} rather than to the
+     * String callbacks, so an unexpectedly large response can't exhaust the
+     * heap. By default, all bodies are read into memory.
+     * @param memoryThreshold the largest body in bytes kept in memory, or 0 to keep all of them in memory.
+     * @param directory the directory for temporary files, e.g. the cache directory of the app, or null for the default one.
+     */
+    public void setSpillToDisk(int memoryThreshold, File directory) {
+        if(memoryThreshold < 0) {
+            throw new IllegalArgumentException("Memory threshold must not be negative");
+        }
+        this.memoryThreshold = memoryThreshold;
+        this.spillDirectory = directory;
+    }
+
+    /**
+     * @return the largest body in bytes kept in memory, 0 if all of them are.
+     */
+    public int getMemoryThreshold() {
+        return memoryThreshold;
+    }
+
+    /**
+     * @return the directory for temporary files, null for the default one.
+     */
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
 
     //
     // Callbacks to be overridden, typically anonymously
@@ -107,6 +226,30 @@ public class AsyncHttpResponseHandler {
      */
     public void onFinish() {}
 
+    /**
+     * Fired instead of success or failure (and finish) when the request is
+     * cancelled, override to handle in your own code
+     */
+    public void onCancel() {}
+
+    /**
+     * Called on the thread running the request before each attempt, so the
+     * handler can adapt the request, e.g. to resume a download. Override to
+     * handle in your own code
+     * @param request the request which is about to be sent
+     */
+    protected void prepareRequest(HttpUriRequest request) {}
+
+    /**
+     * Tells if the handler reads the body while it arrives, instead of being
+     * handed the whole body. Its requests are never coalesced, as a shared
+     * response is read into memory first.
+     * @return true if the handler overrides how the response is read.
+     */
+    protected boolean isStreaming() {
+        return false;
+    }
+
     /**
      * Fired when a request returns successfully, override to handle in your own code
      * @param content the body of the HTTP response from the server
@@ -133,6 +276,20 @@ public class AsyncHttpResponseHandler {
         onSuccess(content);
     }
 
+    /**
+     * Fired instead of the other success callbacks when the body was larger
+     * than the threshold set with {@link #setSpillToDisk(int, File)}, override
+     * to handle in your own code. The body is deleted once this returns,
+     * unless it is moved with {@link ResponseBody#moveTo(java.io.File)}.
+     * By default, the request fails.
+     * @param statusCode the status code of the response
+     * @param headers the headers of the HTTP response
+     * @param body the body of the HTTP response, in a temporary file
+     */
+    public void onSuccess(int statusCode, Header[] headers, ResponseBody body) {
+        handleFailureMessage(new IOException("Response body of " + body.length() + " bytes is too large to be kept in memory"), null);
+    }
+
     /**
      * Fired when a request fails to complete, override to handle in your own code
      * @param error the underlying cause of the failure
@@ -160,6 +317,10 @@ public class AsyncHttpResponseHandler {
         sendMessage(obtainMessage(SUCCESS_MESSAGE, new Object[]{new Integer(statusCode), headers, responseBody}));
     }
 
+    protected void sendSuccessBodyMessage(int statusCode, Header[] headers, ResponseBody responseBody) {
+        sendMessage(obtainMessage(SUCCESS_BODY_MESSAGE, new Object[]{Integer.valueOf(statusCode), headers, responseBody}));
+    }
+
     protected void sendFailureMessage(Throwable e, String responseBody) {
         sendMessage(obtainMessage(FAILURE_MESSAGE, new Object[]{e, responseBody}));
     }
@@ -172,6 +333,10 @@ public class AsyncHttpResponseHandler {
         sendMessage(obtainMessage(START_MESSAGE, null));
     }
 
+    protected void sendCancelMessage() {
+        sendMessage(obtainMessage(CANCEL_MESSAGE, null));
+    }
+
     protected void sendFinishMessage() {
         sendMessage(obtainMessage(FINISH_MESSAGE, null));
     }
@@ -185,6 +350,14 @@ public class AsyncHttpResponseHandler {
         onSuccess(statusCode, headers, responseBody);
     }
 
+    protected void handleSuccessBodyMessage(int statusCode, Header[] headers, ResponseBody responseBody) {
+        try {
+            onSuccess(statusCode, headers, responseBody);
+        } finally {
+            responseBody.release();
+        }
+    }
+
     protected void handleFailureMessage(Throwable e, String responseBody) {
         onFailure(e, responseBody);
     }
@@ -210,6 +383,13 @@ public class AsyncHttpResponseHandler {
             case FINISH_MESSAGE:
                 onFinish();
                 break;
+            case CANCEL_MESSAGE:
+                onCancel();
+                break;
+            case SUCCESS_BODY_MESSAGE:
+                response = (Object[])msg.obj;
+                handleSuccessBodyMessage(((Integer) response[0]).intValue(), (Header[]) response[1], (ResponseBody) response[2]);
+                break;
         }
     }
 
@@ -234,18 +414,33 @@ public class AsyncHttpResponseHandler {
     }
 
     // Interface to AsyncHttpRequest
-    void sendResponseMessage(HttpResponse response) {
+
+    /**
+     * Called when a request of this handler is cancelled or times out while its
+     * response is delivered, so a reader waiting for something else checks its body stream again.
+     */
+    void onRequestAborted() {}
+
+    protected void sendResponseMessage(HttpResponse response) {
         StatusLine status = response.getStatusLine();
         String responseBody = null;
         try {
-            HttpEntity entity = null;
             HttpEntity temp = response.getEntity();
-            if(temp != null) {
-                entity = new BufferedHttpEntity(temp);
+            if(temp != null && memoryThreshold > 0) {
+                ResponseBody body = ResponseBody.read(temp, memoryThreshold, spillDirectory);
+                if(!body.isInMemory()) {
+                    sendSpilledResponseMessage(status, response.getAllHeaders(), body);
+                    return;
+                }
+                String charset = EntityUtils.getContentCharSet(temp);
+                responseBody = body.getString(charset != null ? charset : "UTF-8");
+            } else if(temp != null) {
+                HttpEntity entity = new BufferedHttpEntity(temp);
                 responseBody = EntityUtils.toString(entity, "UTF-8");
             }
         } catch(IOException e) {
             sendFailureMessage(e, (String) null);
+            return;
         }
 
         if(status.getStatusCode() >= 300) {
@@ -254,4 +449,17 @@ public class AsyncHttpResponseHandler {
             sendSuccessMessage(status.getStatusCode(), response.getAllHeaders(), responseBody);
         }
     }
+
+    /**
+     * Reports a body which was written to a temporary file, as it was too large for memory.
+     */
+    protected void sendSpilledResponseMessage(StatusLine status, Header[] headers, ResponseBody body) {
+        if(status.getStatusCode() >= 300) {
+            // An error page that large is not worth reading
+            body.release();
+            sendFailureMessage(new HttpResponseException(status.getStatusCode(), status.getReasonPhrase()), (String) null);
+        } else {
+            sendSuccessBodyMessage(status.getStatusCode(), headers, body);
+        }
+    }
 }
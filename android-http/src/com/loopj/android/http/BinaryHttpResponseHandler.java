@@ -157,7 +157,7 @@ public class BinaryHttpResponseHandler extends AsyncHttpResponseHandler {
 
     // Interface to AsyncHttpRequest
     @Override
-    void sendResponseMessage(HttpResponse response) {
+    protected void sendResponseMessage(HttpResponse response) {
         StatusLine status = response.getStatusLine();
         Header[] contentTypeHeaders = response.getHeaders("Content-Type");
         byte[] responseBody = null;
@@ -181,12 +181,22 @@ public class BinaryHttpResponseHandler extends AsyncHttpResponseHandler {
         try {
             HttpEntity entity = null;
             HttpEntity temp = response.getEntity();
-            if(temp != null) {
-                entity = new BufferedHttpEntity(temp);
+            if(temp != null && getMemoryThreshold() > 0) {
+                ResponseBody body = ResponseBody.read(temp, getMemoryThreshold(), getSpillDirectory());
+                if(!body.isInMemory()) {
+                    sendSpilledResponseMessage(status, response.getAllHeaders(), body);
+                    return;
+                }
+                responseBody = body.getBytes();
+            } else {
+                if(temp != null) {
+                    entity = new BufferedHttpEntity(temp);
+                }
+                responseBody = EntityUtils.toByteArray(entity);
             }
-            responseBody = EntityUtils.toByteArray(entity);
         } catch(IOException e) {
             sendFailureMessage(e, (byte[]) null);
+            return;
         }
 
         if(status.getStatusCode() >= 300) {
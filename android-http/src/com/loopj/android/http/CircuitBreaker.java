@@ -0,0 +1,158 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.os.SystemClock;
+
+/**
+ * Stops sending requests to a host which keeps failing, so a backend which is
+ * down is not flooded with requests and retries, and requests to it fail
+ * right away instead of tying up the thread pool.
+ * <p>
+ * Each host starts out {@link State#CLOSED}, where requests are sent. After a
+ * number of consecutive failures, connection errors or 5xx responses, it is
+ * {@link State#OPEN}, and requests fail with a {@link CircuitOpenException}
+ * without being sent. Once the open time has passed it is
+ * {@link State#HALF_OPEN}: a single request is let through as a probe, which
+ * closes the circuit if it succeeds and opens it again if it fails.
+ */
+public class CircuitBreaker {
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final int DEFAULT_OPEN_MILLIS = 30 * 1000;
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final int openMillis;
+    private final ConcurrentHashMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+
+    /**
+     * Creates a circuit breaker which opens after 5 consecutive failures for 30 seconds.
+     */
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+    }
+
+    /**
+     * @param failureThreshold the number of consecutive failures after which a host's circuit opens.
+     * @param openMillis the time in milliseconds a circuit stays open before a probe request is let through.
+     */
+    public CircuitBreaker(int failureThreshold, int openMillis) {
+        if(failureThreshold < 1 || openMillis < 0) {
+            throw new IllegalArgumentException("Invalid circuit breaker settings");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Called before a request to the host is sent.
+     * @return false if the request must fail without being sent.
+     */
+    public boolean allowRequest(String host) {
+        Circuit circuit = circuits.get(host);
+        return circuit == null || circuit.allowRequest();
+    }
+
+    public void onSuccess(String host) {
+        Circuit circuit = circuits.get(host);
+        if(circuit != null) {
+            circuit.onSuccess();
+        }
+    }
+
+    public void onFailure(String host) {
+        Circuit circuit = circuits.get(host);
+        if(circuit == null) {
+            Circuit created = new Circuit();
+            circuit = circuits.putIfAbsent(host, created);
+            if(circuit == null) {
+                circuit = created;
+            }
+        }
+        circuit.onFailure();
+    }
+
+    public State getState(String host) {
+        Circuit circuit = circuits.get(host);
+        return circuit != null ? circuit.getState() : State.CLOSED;
+    }
+
+    /**
+     * Closes the circuits of all hosts.
+     */
+    public void reset() {
+        circuits.clear();
+    }
+
+    private class Circuit {
+        private State state = State.CLOSED;
+        private int failures;
+        private long openedAt;
+        // Start of the probe in flight while half open, 0 if there is none
+        private long probeStartedAt;
+
+        synchronized boolean allowRequest() {
+            long now = SystemClock.elapsedRealtime();
+            if(state == State.OPEN && now - openedAt >= openMillis) {
+                state = State.HALF_OPEN;
+                probeStartedAt = 0;
+            }
+            switch(state) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                // A probe which never reported back, e.g. as it was cancelled, is replaced after a while
+                if(probeStartedAt == 0 || now - probeStartedAt >= openMillis) {
+                    probeStartedAt = now;
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+            }
+        }
+
+        synchronized void onSuccess() {
+            state = State.CLOSED;
+            failures = 0;
+        }
+
+        synchronized void onFailure() {
+            failures++;
+            if(state == State.HALF_OPEN || failures >= failureThreshold) {
+                state = State.OPEN;
+                openedAt = SystemClock.elapsedRealtime();
+            }
+        }
+
+        synchronized State getState() {
+            if(state == State.OPEN && SystemClock.elapsedRealtime() - openedAt >= openMillis) {
+                return State.HALF_OPEN;
+            }
+            return state;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.IOException;
+
+/**
+ * Reported as failure of a request which was not sent as the
+ * {@link CircuitBreaker} of its host is open.
+ */
+public class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final String host;
+
+    public CircuitOpenException(String host) {
+        super("Circuit open for " + host + ", request not sent");
+        this.host = host;
+    }
+
+    public String getHost() {
+        return host;
+    }
+}
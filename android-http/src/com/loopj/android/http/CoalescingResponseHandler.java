@@ -0,0 +1,179 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Response handler shared by identical GET requests which are in flight at
+ * the same time. The response is read once and every joined handler gets
+ * its own copy of it, so each of them still parses the body the way it
+ * usually does.
+ * <p>
+ * Handlers can join until the response (or failure) arrives. At that point
+ * the handler removes itself from the in-flight map so later requests go
+ * to the network again.
+ */
+class CoalescingResponseHandler extends AsyncHttpResponseHandler {
+    private final String key;
+    private final ConcurrentMap<String, CoalescingResponseHandler> inFlightRequests;
+    private final List<AsyncHttpResponseHandler> handlers = new ArrayList<AsyncHttpResponseHandler>();
+    private boolean started;
+    private boolean closed;
+
+    public CoalescingResponseHandler(String key, ConcurrentMap<String, CoalescingResponseHandler> inFlightRequests) {
+        this.key = key;
+        this.inFlightRequests = inFlightRequests;
+    }
+
+    /**
+     * Joins the handler to the shared request.
+     * @return false if the shared request already completed and the handler has to send its own request.
+     */
+    public synchronized boolean addHandler(AsyncHttpResponseHandler handler) {
+        if(closed) {
+            return false;
+        }
+        handlers.add(handler);
+        if(started) {
+            // Late joiners still get the usual start callback
+            handler.sendStartMessage();
+        }
+        return true;
+    }
+
+    private synchronized List<AsyncHttpResponseHandler> start() {
+        started = true;
+        return new ArrayList<AsyncHttpResponseHandler>(handlers);
+    }
+
+    private synchronized List<AsyncHttpResponseHandler> close() {
+        if(!closed) {
+            closed = true;
+            inFlightRequests.remove(key, this);
+        }
+        return new ArrayList<AsyncHttpResponseHandler>(handlers);
+    }
+
+    @Override
+    protected void prepareRequest(HttpUriRequest request) {
+        AsyncHttpResponseHandler sender;
+        synchronized(this) {
+            sender = handlers.get(0);
+        }
+        // The request is sent as the first handler would send it alone, the others joined it as is
+        sender.prepareRequest(request);
+    }
+
+    @Override
+    protected void sendStartMessage() {
+        for(AsyncHttpResponseHandler handler : start()) {
+            handler.sendStartMessage();
+        }
+    }
+
+    @Override
+    protected void sendFinishMessage() {
+        for(AsyncHttpResponseHandler handler : close()) {
+            handler.sendFinishMessage();
+        }
+    }
+
+    @Override
+    protected void sendCancelMessage() {
+        super.sendCancelMessage();
+        for(AsyncHttpResponseHandler handler : close()) {
+            handler.sendCancelMessage();
+        }
+    }
+
+    @Override
+    void onRequestAborted() {
+        for(AsyncHttpResponseHandler handler : close()) {
+            handler.onRequestAborted();
+        }
+    }
+
+    @Override
+    protected void sendFailureMessage(Throwable e, String responseBody) {
+        for(AsyncHttpResponseHandler handler : close()) {
+            if(handler instanceof BinaryHttpResponseHandler) {
+                handler.sendFailureMessage(e, responseBody != null ? responseBody.getBytes() : null);
+            } else {
+                handler.sendFailureMessage(e, responseBody);
+            }
+        }
+    }
+
+    @Override
+    protected void sendFailureMessage(Throwable e, byte[] responseBody) {
+        for(AsyncHttpResponseHandler handler : close()) {
+            sendFailureMessage(handler, e, responseBody);
+        }
+    }
+
+    private void sendFailureMessage(AsyncHttpResponseHandler handler, Throwable e, byte[] responseBody) {
+        // The bytes are only decoded for handlers which want text, binary bodies are passed on as they are
+        if(handler instanceof BinaryHttpResponseHandler) {
+            handler.sendFailureMessage(e, responseBody);
+        } else {
+            handler.sendFailureMessage(e, responseBody != null ? new String(responseBody) : null);
+        }
+    }
+
+    @Override
+    protected void sendResponseMessage(HttpResponse response) {
+        List<AsyncHttpResponseHandler> targets = close();
+
+        HttpEntity entity = response.getEntity();
+        byte[] responseBody = null;
+        try {
+            if(entity != null) {
+                responseBody = EntityUtils.toByteArray(entity);
+            }
+        } catch(IOException e) {
+            for(AsyncHttpResponseHandler handler : targets) {
+                sendFailureMessage(handler, e, (byte[]) null);
+            }
+            return;
+        }
+
+        // Every handler consumes its own copy of the already read response
+        for(AsyncHttpResponseHandler handler : targets) {
+            BasicHttpResponse copy = new BasicHttpResponse(response.getStatusLine());
+            copy.setHeaders(response.getAllHeaders());
+            if(entity != null) {
+                ByteArrayEntity copyEntity = new ByteArrayEntity(responseBody);
+                copyEntity.setContentType(entity.getContentType());
+                copy.setEntity(copyEntity);
+            }
+            handler.sendResponseMessage(copy);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+
+/**
+ * Adapts the number of requests in flight per host to what the link
+ * carries, instead of a fixed number of connections. On a congested link
+ * more parallel requests only queue up inside the network, so they are
+ * queued here instead, and on a good link the limit grows again.
+ * <p>
+ * The limit follows additive increase, multiplicative decrease: it grows by
+ * about one per round trip while response times stay close to the fastest
+ * recently seen, and is cut by a quarter, at most once per round trip, when
+ * they rise above that or requests fail. Requests above the limit wait,
+ * without holding a thread, by their {@link RequestPriority}.
+ */
+public class ConcurrencyLimiter {
+    public static final int DEFAULT_INITIAL_LIMIT = 4;
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    public static final int DEFAULT_MAX_LIMIT = 10;
+
+    // Response times up to this factor of the fastest one count as uncongested
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double BACKOFF_RATIO = 0.75;
+    // The fastest response time is forgotten after this time, the route may have changed
+    private static final long MIN_LATENCY_WINDOW_MILLIS = 60 * 1000;
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final ConcurrentHashMap<String, HostLimit> limits = new ConcurrentHashMap<String, HostLimit>();
+
+    /**
+     * Creates a limiter which starts with 4 requests per host, and adapts between 1 and 10.
+     */
+    public ConcurrencyLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+    }
+
+    /**
+     * @param initialLimit the number of requests in flight per host allowed at first.
+     * @param minLimit the lower bound of the limit.
+     * @param maxLimit the upper bound of the limit, more than the connections per route are of no use.
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if(minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Invalid concurrency limits");
+        }
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * @return the current number of requests in flight allowed for the host.
+     */
+    public int getLimit(String host) {
+        HostLimit limit = limits.get(host);
+        return limit != null ? limit.getLimit() : initialLimit;
+    }
+
+    /**
+     * Takes a permit to send a request to the host, or queues the request
+     * until one is released; it is then passed to {@link AsyncHttpRequest#onPermit()}.
+     * @return true if the request holds a permit and may be sent right away.
+     */
+    boolean acquire(String host, AsyncHttpRequest request) {
+        return getHostLimit(host).acquire(request);
+    }
+
+    /**
+     * Removes a request from the queue of the host, if it is still waiting there.
+     * @return true if the request was removed, it won't get a permit then.
+     */
+    boolean remove(String host, AsyncHttpRequest request) {
+        return getHostLimit(host).remove(request);
+    }
+
+    /**
+     * Returns the permit of an attempt and adapts the limit to its outcome.
+     * @param latencyMillis the time until the response arrived, or -1 if there was no response.
+     * @param failed true if the attempt failed, or the server was overloaded.
+     */
+    void release(String host, long latencyMillis, boolean failed) {
+        for(AsyncHttpRequest next : getHostLimit(host).release(latencyMillis, failed)) {
+            next.onPermit();
+        }
+    }
+
+    private HostLimit getHostLimit(String host) {
+        HostLimit limit = limits.get(host);
+        if(limit == null) {
+            HostLimit created = new HostLimit();
+            limit = limits.putIfAbsent(host, created);
+            if(limit == null) {
+                limit = created;
+            }
+        }
+        return limit;
+    }
+
+    private class HostLimit {
+        private double limit = initialLimit;
+        private int inFlight;
+        private long minLatency = -1;
+        private long windowMinLatency = -1;
+        private long windowStart = SystemClock.elapsedRealtime();
+        private long lastBackoff;
+        private final PriorityQueue<Waiting> waiting = new PriorityQueue<Waiting>();
+
+        synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        synchronized boolean acquire(AsyncHttpRequest request) {
+            if(inFlight < (int) limit) {
+                inFlight++;
+                return true;
+            }
+            waiting.add(new Waiting(request));
+            return false;
+        }
+
+        synchronized boolean remove(AsyncHttpRequest request) {
+            Iterator<Waiting> it = waiting.iterator();
+            while(it.hasNext()) {
+                if(it.next().request == request) {
+                    it.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the requests which got the free permits.
+         */
+        synchronized List<AsyncHttpRequest> release(long latencyMillis, boolean failed) {
+            boolean saturated = inFlight >= (int) limit;
+            inFlight--;
+            if(latencyMillis >= 0 || failed) {
+                adapt(latencyMillis, failed, saturated);
+            }
+
+            List<AsyncHttpRequest> granted = new ArrayList<AsyncHttpRequest>();
+            while(inFlight < (int) limit && !waiting.isEmpty()) {
+                inFlight++;
+                granted.add(waiting.poll().request);
+            }
+            return granted;
+        }
+
+        private void adapt(long latencyMillis, boolean failed, boolean saturated) {
+            long now = SystemClock.elapsedRealtime();
+            if(latencyMillis >= 0) {
+                if(now - windowStart >= MIN_LATENCY_WINDOW_MILLIS) {
+                    minLatency = windowMinLatency;
+                    windowMinLatency = -1;
+                    windowStart = now;
+                }
+                if(windowMinLatency < 0 || latencyMillis < windowMinLatency) {
+                    windowMinLatency = latencyMillis;
+                }
+                if(minLatency < 0 || latencyMillis < minLatency) {
+                    minLatency = latencyMillis;
+                }
+            }
+
+            if(failed || latencyMillis > minLatency * LATENCY_TOLERANCE) {
+                // Once per round trip, the requests in flight at the time all see the same congestion
+                if(now - lastBackoff > minLatency) {
+                    limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                    lastBackoff = now;
+                }
+            } else if(saturated) {
+                // Only grow a limit which is in use
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+        }
+    }
+
+    private static class Waiting implements Comparable<Waiting> {
+        private final AsyncHttpRequest request;
+        private final RequestPriority priority;
+        private final long order;
+
+        Waiting(AsyncHttpRequest request) {
+            this.request = request;
+            this.priority = request.getPriority();
+            this.order = sequence.getAndIncrement();
+        }
+
+        @Override
+        public int compareTo(Waiting other) {
+            int result = priority.compareTo(other.priority);
+            if(result == 0) {
+                result = order < other.order ? -1 : (order == other.order ? 0 : 1);
+            }
+            return result;
+        }
+    }
+}
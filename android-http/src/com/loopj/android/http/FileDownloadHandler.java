@@ -0,0 +1,442 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+
+import android.os.Message;
+import android.os.SystemClock;
+
+/**
+ * Used to intercept and handle the responses from requests made using
+ * {@link AsyncHttpClient}, saving the response body to a file. The body
+ * is written straight to the file through a reused buffer, so memory
+ * use does not depend on the size of the download.
+ * <p>
+ * The body is written to a <code>.part</code> file next to the target,
+ * which is synced to disk and renamed to the target once complete, so the
+ * target never holds a partial download.
+ * <p>
+ * For example:
+ * <p>
+ * <pre>
+ * client.get("http://www.example.com/asset.zip", new FileDownloadHandler(new File(dir, "asset.zip")) {
+ *     &#064;Override
+ *     public void onProgress(long bytesWritten, long totalBytes) {
+ *         progressBar.setProgress((int) (bytesWritten * 100 / totalBytes));
+ *     }
+ *
+ *     &#064;Override
+ *     public void onSuccess(File file) {
+ *         // The download is complete
+ *     }
+ * });
+ * </pre>
+ */
+public class FileDownloadHandler extends AsyncHttpResponseHandler {
+    protected static final int PROGRESS_MESSAGE = 300;
+    protected static final int SUCCESS_FILE_MESSAGE = 301;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Progress is reported at most this often, so the calling thread is not flooded
+    private static final long PROGRESS_INTERVAL_MILLIS = 100;
+
+    // The buffers are reused by all handlers, so downloads do not churn the heap
+    private static final int MAX_POOLED_BUFFERS = 4;
+    private static final byte[][] bufferPool = new byte[MAX_POOLED_BUFFERS][];
+    private static int pooledBuffers;
+
+    static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+    private final File file;
+    private final boolean resumable;
+
+    /**
+     * Creates a new FileDownloadHandler
+     * @param file the file to save the response body to, it is replaced once the download is complete.
+     */
+    public FileDownloadHandler(File file) {
+        this(file, false);
+    }
+
+    /**
+     * Creates a new FileDownloadHandler, which can resume downloads.
+     * <p>
+     * A resumable download keeps its partial file when it fails, together
+     * with the ETag or Last-Modified date of the response. Retries, and later
+     * requests with a handler for the same file, e.g. after the app was
+     * restarted, then only ask for the rest of the file with a Range
+     * request. The If-Range header makes the server send the whole file
+     * again if it changed in the meantime.
+     * @param file the file to save the response body to, it is replaced once the download is complete.
+     * @param resumable true to keep partial downloads and resume them.
+     */
+    public FileDownloadHandler(File file, boolean resumable) {
+        if(file == null) {
+            throw new IllegalArgumentException("File must not be null");
+        }
+        this.file = file;
+        this.resumable = resumable;
+    }
+
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the file the body is written to until it is complete.
+     */
+    protected File getPartFile() {
+        return new File(file.getPath() + ".part");
+    }
+
+
+    //
+    // Callbacks to be overridden, typically anonymously
+    //
+
+    /**
+     * Fired while the body is downloaded, override to handle in your own code
+     * @param bytesWritten the number of bytes saved so far
+     * @param totalBytes the size of the body, or -1 if the server did not tell
+     */
+    public void onProgress(long bytesWritten, long totalBytes) {}
+
+    /**
+     * Fired when the download is complete, override to handle in your own code
+     * @param file the file the body was saved to
+     */
+    public void onSuccess(File file) {}
+
+    /**
+     * Fired when the download is complete, override to handle in your own code
+     * @param statusCode the status code of the response
+     * @param headers the headers of the HTTP response
+     * @param file the file the body was saved to
+     */
+    public void onSuccess(int statusCode, Header[] headers, File file) {
+        onSuccess(file);
+    }
+
+
+    //
+    // Pre-processing of messages (executes in background threadpool thread)
+    //
+
+    protected void sendProgressMessage(long bytesWritten, long totalBytes) {
+        sendMessage(obtainMessage(PROGRESS_MESSAGE, new Object[]{Long.valueOf(bytesWritten), Long.valueOf(totalBytes)}));
+    }
+
+    protected void sendSuccessMessage(int statusCode, Header[] headers, File file) {
+        sendMessage(obtainMessage(SUCCESS_FILE_MESSAGE, new Object[]{Integer.valueOf(statusCode), headers, file}));
+    }
+
+
+    //
+    // Pre-processing of messages (in original calling thread, typically the UI thread)
+    //
+
+    @Override
+    protected void handleMessage(Message msg) {
+        Object[] response;
+        switch(msg.what) {
+            case PROGRESS_MESSAGE:
+                response = (Object[]) msg.obj;
+                onProgress(((Long) response[0]).longValue(), ((Long) response[1]).longValue());
+                break;
+            case SUCCESS_FILE_MESSAGE:
+                response = (Object[]) msg.obj;
+                onSuccess(((Integer) response[0]).intValue(), (Header[]) response[1], (File) response[2]);
+                break;
+            default:
+                super.handleMessage(msg);
+                break;
+        }
+    }
+
+    // Interface to AsyncHttpRequest
+    @Override
+    protected boolean isStreaming() {
+        return true;
+    }
+
+    @Override
+    protected void prepareRequest(HttpUriRequest request) {
+        request.removeHeaders("Range");
+        request.removeHeaders("If-Range");
+        if(!resumable) {
+            return;
+        }
+        long received = getPartFile().length();
+        String validator = readValidator();
+        if(received > 0 && validator != null) {
+            // The server sends the rest only if the file did not change, else all of it
+            request.setHeader("Range", "bytes=" + received + "-");
+            request.setHeader("If-Range", validator);
+        }
+    }
+
+    @Override
+    protected void sendResponseMessage(HttpResponse response) {
+        StatusLine status = response.getStatusLine();
+        HttpEntity entity = response.getEntity();
+        int statusCode = status.getStatusCode();
+        if(statusCode == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+            // The partial file does not fit the file on the server anymore
+            discardPartial();
+        }
+        if((statusCode >= 300 && statusCode != HttpStatus.SC_PARTIAL_CONTENT) || entity == null) {
+            super.sendResponseMessage(response);
+            return;
+        }
+
+        try {
+            saveBody(response);
+        } catch(IOException e) {
+            if(!resumable) {
+                getPartFile().delete();
+            }
+            sendFailureMessage(e, (String) null);
+            return;
+        }
+        sendSuccessMessage(statusCode, response.getAllHeaders(), file);
+    }
+
+    /**
+     * Writes the body of a 200 or 206 response to the partial file and
+     * renames it to the target once complete.
+     */
+    void saveBody(HttpResponse response) throws IOException {
+        File partFile = getPartFile();
+        InputStream in = null;
+        boolean complete = false;
+        try {
+            in = response.getEntity().getContent();
+            long offset = 0;
+            long totalBytes = response.getEntity().getContentLength();
+            if(response.getStatusLine().getStatusCode() == HttpStatus.SC_PARTIAL_CONTENT) {
+                offset = partFile.length();
+                totalBytes = getResumedLength(response, offset);
+            } else if(resumable) {
+                // A full body, remember what identifies it before any of it is written
+                writeValidator(response);
+            }
+            writeToFile(in, partFile, offset, totalBytes);
+            complete = true;
+            // At the end of the body, this releases the connection for reuse
+            in.close();
+            moveToTarget(partFile);
+            getMetaFile().delete();
+        } finally {
+            if(!complete && in != null) {
+                abort(in);
+            }
+        }
+    }
+
+    /**
+     * Renames a complete partial file to the target.
+     */
+    void moveToTarget(File partFile) throws IOException {
+        if(!partFile.renameTo(file)) {
+            // Renaming does not replace the target everywhere
+            file.delete();
+            if(!partFile.renameTo(file)) {
+                throw new IOException("Could not rename " + partFile + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * Checks that a 206 response continues the partial file.
+     * @return the size of the whole file, or -1 if the server did not tell.
+     */
+    private long getResumedLength(HttpResponse response, long offset) throws IOException {
+        // Content-Range: bytes <first>-<last>/<length or *>
+        Header header = response.getFirstHeader("Content-Range");
+        Matcher matcher = header != null ? CONTENT_RANGE.matcher(header.getValue().trim()) : null;
+        if(matcher == null || !matcher.matches() || Long.parseLong(matcher.group(1)) != offset) {
+            discardPartial();
+            throw new IOException("Server resumed the download at the wrong position, restarting it");
+        }
+        return "*".equals(matcher.group(3)) ? -1 : Long.parseLong(matcher.group(3));
+    }
+
+    private void writeToFile(InputStream in, File partFile, long offset, long totalBytes) throws IOException {
+        byte[] buffer = obtainBuffer();
+        // Appends to the partial file when resuming, else starts over
+        FileOutputStream out = new FileOutputStream(partFile, offset > 0);
+        FileChannel channel = out.getChannel();
+        try {
+            long bytesWritten = offset;
+            long lastProgress = 0;
+            while(true) {
+                // Read straight into the array, a channel over the stream would copy through one of its own
+                int read = in.read(buffer);
+                if(read == -1) {
+                    break;
+                }
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                while(data.hasRemaining()) {
+                    channel.write(data);
+                }
+                bytesWritten += read;
+                long now = SystemClock.uptimeMillis();
+                if(now - lastProgress >= PROGRESS_INTERVAL_MILLIS) {
+                    lastProgress = now;
+                    sendProgressMessage(bytesWritten, totalBytes);
+                }
+            }
+            // The final progress is always reported
+            sendProgressMessage(bytesWritten, totalBytes);
+            if(totalBytes >= 0 && bytesWritten < totalBytes) {
+                // The connection closed early, HttpClient reports that as the end of the body
+                throw new IOException("Download ended after " + bytesWritten + " of " + totalBytes + " bytes");
+            }
+        } finally {
+            try {
+                // Also on failure, so a resumed download continues after what is really on disk
+                channel.force(true);
+            } finally {
+                out.close();
+                recycleBuffer(buffer);
+            }
+        }
+    }
+
+    /**
+     * @return the file recording what identifies the partial download.
+     */
+    private File getMetaFile() {
+        return new File(file.getPath() + ".part.meta");
+    }
+
+    /**
+     * @return the ETag or Last-Modified date of the partial download, or null if it can't be resumed.
+     */
+    private String readValidator() {
+        File metaFile = getMetaFile();
+        if(!metaFile.exists()) {
+            return null;
+        }
+        Properties meta = new Properties();
+        try {
+            FileInputStream in = new FileInputStream(metaFile);
+            try {
+                meta.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return meta.getProperty("validator");
+    }
+
+    private void writeValidator(HttpResponse response) throws IOException {
+        String validator = getValidator(response);
+        File metaFile = getMetaFile();
+        if(validator == null) {
+            // Without a validator a partial file would be resumed blindly, so it is not kept
+            metaFile.delete();
+            return;
+        }
+        Properties meta = new Properties();
+        meta.setProperty("validator", validator);
+        FileOutputStream out = new FileOutputStream(metaFile);
+        try {
+            meta.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the strong ETag or else the Last-Modified date of a response, or null if it has neither.
+     */
+    static String getValidator(HttpResponse response) {
+        // Weak ETags can't be used for ranges
+        Header etag = response.getFirstHeader("ETag");
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        if(etag != null && !etag.getValue().startsWith("W/")) {
+            return etag.getValue();
+        } else if(lastModified != null) {
+            return lastModified.getValue();
+        }
+        return null;
+    }
+
+    private void discardPartial() {
+        getPartFile().delete();
+        getMetaFile().delete();
+    }
+
+    static void abort(InputStream in) {
+        try {
+            // Drops the connection rather than reading the rest of the body
+            if(in instanceof ConnectionReleaseTrigger) {
+                ((ConnectionReleaseTrigger) in).abortConnection();
+            } else {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+
+    static byte[] obtainBuffer() {
+        synchronized(bufferPool) {
+            if(pooledBuffers > 0) {
+                byte[] buffer = bufferPool[--pooledBuffers];
+                bufferPool[pooledBuffers] = null;
+                return buffer;
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    static void recycleBuffer(byte[] buffer) {
+        synchronized(bufferPool) {
+            if(pooledBuffers < MAX_POOLED_BUFFERS) {
+                bufferPool[pooledBuffers++] = buffer;
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Opt-in policy to hedge GET requests: when no response arrived within the
+ * hedge delay, an identical request is sent on another connection, the
+ * first response is used and the other request is aborted. This cuts the
+ * tail latency caused by the occasional slow connection.
+ * <p>
+ * The delay is either fixed, or the 95th percentile of the recent response
+ * times of the host, so only the slowest requests are hedged. Hedges are
+ * limited to a share of the requests, so they add little load. A hedge
+ * runs under the circuit breaker check and concurrency permit of its
+ * request, it is not counted separately by either.
+ */
+public class HedgePolicy {
+    public static final double DEFAULT_MAX_HEDGE_RATIO = 0.05;
+
+    private static final int SAMPLE_COUNT = 64;
+    private static final int MIN_SAMPLES = 20;
+
+    private final int delayMillis;
+    private final boolean usePercentile;
+    private final RetryBudget budget;
+    private final ConcurrentHashMap<String, Latencies> latencies = new ConcurrentHashMap<String, Latencies>();
+
+    /**
+     * Creates a policy which hedges requests after a fixed delay, for at most 5% of the requests.
+     * @param delayMillis the time in milliseconds to wait for a response before hedging.
+     */
+    public HedgePolicy(int delayMillis) {
+        this(delayMillis, false, DEFAULT_MAX_HEDGE_RATIO);
+    }
+
+    /**
+     * @param delayMillis the time in milliseconds to wait for a response before hedging, used
+     *        until enough response times of the host are known if the percentile is used.
+     * @param usePercentile true to hedge after the 95th percentile of the host's recent response times.
+     * @param maxHedgeRatio the share of the requests which may be hedged.
+     */
+    public HedgePolicy(int delayMillis, boolean usePercentile, double maxHedgeRatio) {
+        if(delayMillis < 0 || maxHedgeRatio < 0) {
+            throw new IllegalArgumentException("Invalid hedge policy");
+        }
+        this.delayMillis = delayMillis;
+        this.usePercentile = usePercentile;
+        // Hedges are budgeted the way retries are
+        this.budget = new RetryBudget(maxHedgeRatio, 0, RetryBudget.DEFAULT_WINDOW_MILLIS);
+    }
+
+    /**
+     * Called for each request which may be hedged, when it is sent.
+     * @return the time in milliseconds to wait for a response before hedging.
+     */
+    long onRequest(String host) {
+        budget.onRequest();
+        if(usePercentile) {
+            Latencies hostLatencies = latencies.get(host);
+            if(hostLatencies != null) {
+                long percentile = hostLatencies.getPercentile(95);
+                if(percentile >= 0) {
+                    return percentile;
+                }
+            }
+        }
+        return delayMillis;
+    }
+
+    /**
+     * @return false if the hedge budget is used up.
+     */
+    boolean tryHedge() {
+        return budget.tryRetry();
+    }
+
+    /**
+     * Records the time it took until the response of a request arrived.
+     */
+    void onResponse(String host, long millis) {
+        if(!usePercentile) {
+            return;
+        }
+        Latencies hostLatencies = latencies.get(host);
+        if(hostLatencies == null) {
+            Latencies created = new Latencies();
+            hostLatencies = latencies.putIfAbsent(host, created);
+            if(hostLatencies == null) {
+                hostLatencies = created;
+            }
+        }
+        hostLatencies.add(millis);
+    }
+
+    private static class Latencies {
+        private final long[] samples = new long[SAMPLE_COUNT];
+        private int count;
+        private int next;
+
+        synchronized void add(long millis) {
+            samples[next] = millis;
+            next = (next + 1) % samples.length;
+            if(count < samples.length) {
+                count++;
+            }
+        }
+
+        /**
+         * @return the percentile of the recent samples, or -1 if there are too few of them.
+         */
+        synchronized long getPercentile(int percentile) {
+            if(count < MIN_SAMPLES) {
+                return -1;
+            }
+            long[] sorted = new long[count];
+            System.arraycopy(samples, 0, sorted, 0, count);
+            Arrays.sort(sorted);
+            return sorted[Math.min(count - 1, count * percentile / 100)];
+        }
+    }
+}
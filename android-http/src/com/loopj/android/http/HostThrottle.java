@@ -0,0 +1,102 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import android.os.SystemClock;
+
+/**
+ * Remembers how long hosts asked to be left alone with a Retry-After header,
+ * shared by all requests and clients, so once one request is throttled the
+ * others to the same host wait as well instead of hitting it right away.
+ * Requests block a host for at most the maximum elapsed time of their retry
+ * policy, and {@link #clear()} lifts all blocks.
+ */
+class HostThrottle {
+    private static final ConcurrentHashMap<String, Long> blockedUntil = new ConcurrentHashMap<String, Long>();
+
+    private HostThrottle() {
+    }
+
+    /**
+     * Blocks requests to a host for the given time, unless it is blocked for longer already.
+     */
+    public static void block(String host, long millis) {
+        Long until = Long.valueOf(SystemClock.elapsedRealtime() + millis);
+        while(true) {
+            Long current = blockedUntil.putIfAbsent(host, until);
+            if(current == null || current.longValue() >= until.longValue() || blockedUntil.replace(host, current, until)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the time in milliseconds requests to the host have to wait, 0 if they may be sent.
+     */
+    public static long getRemainingMillis(String host) {
+        Long until = blockedUntil.get(host);
+        if(until == null) {
+            return 0;
+        }
+        long remaining = until.longValue() - SystemClock.elapsedRealtime();
+        if(remaining <= 0) {
+            blockedUntil.remove(host, until);
+            return 0;
+        }
+        return remaining;
+    }
+
+    /**
+     * Lifts the blocks of all hosts.
+     */
+    public static void clear() {
+        blockedUntil.clear();
+    }
+
+    /**
+     * Reads the Retry-After header of a response, given either in seconds or as HTTP date.
+     * @return the time to wait in milliseconds, or -1 if the response has no valid header.
+     */
+    public static long parseRetryAfter(HttpResponse response) {
+        Header header = response.getFirstHeader("Retry-After");
+        if(header == null) {
+            return -1;
+        }
+        String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            // Not in seconds, try a date
+        }
+        try {
+            Date date = DateUtils.parseDate(value);
+            return Math.max(0, date.getTime() - System.currentTimeMillis());
+        } catch (DateParseException e) {
+            return -1;
+        }
+    }
+}
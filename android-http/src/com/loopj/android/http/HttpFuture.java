@@ -0,0 +1,418 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The result of a request which is not known yet, returned by the
+ * <code>*Future</code> methods of {@link AsyncHttpClient}.
+ * <p>
+ * Besides waiting for it with {@link #get()}, futures can be chained with
+ * {@link #thenApply(Function)} and {@link #thenCompose(Function)}, and
+ * combined with {@link #allOf(List)} and {@link #anyOf(List)}. Listeners and
+ * functions run on the thread which completes the future, usually the thread
+ * which ran the request, so dependent requests are started without a detour
+ * through the main thread. Keep them short and post to the main thread to
+ * touch the UI.
+ * <p>
+ * For example, loading a user and their friends in parallel, then their
+ * photos once the user is known:
+ * <p>
+ * <pre>
+ * HttpFuture&lt;HttpResult&gt; user = client.getFuture("http://example.com/user");
+ * HttpFuture&lt;HttpResult&gt; friends = client.getFuture("http://example.com/friends");
+ * HttpFuture&lt;HttpResult&gt; photos = user.thenCompose(new HttpFuture.Function&lt;HttpResult, HttpFuture&lt;HttpResult&gt;&gt;() {
+ *     &#064;Override
+ *     public HttpFuture&lt;HttpResult&gt; apply(HttpResult result) {
+ *         return client.getFuture("http://example.com/photos/" + parseId(result.getBody()));
+ *     }
+ * });
+ * HttpFuture.allOf(Arrays.asList(friends, photos)).addListener(...);
+ * </pre>
+ *
+ * @param <T> the type of the result.
+ */
+public class HttpFuture<T> implements Future<T> {
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    /**
+     * Receives the outcome of a future.
+     */
+    public interface Listener<T> {
+        void onSuccess(T result);
+
+        void onFailure(Throwable error);
+    }
+
+    /**
+     * Maps the result of a future. An exception thrown by it fails the resulting future.
+     */
+    public interface Function<A, B> {
+        B apply(A input) throws Exception;
+    }
+
+    private int state = PENDING;
+    private T result;
+    private Throwable error;
+    private List<Listener<? super T>> listeners = new ArrayList<Listener<? super T>>();
+    // Cancelled together with this future, like the request producing its result
+    private final List<Future<?>> upstream = new ArrayList<Future<?>>();
+
+    /**
+     * Creates a new pending future, to be completed with {@link #complete(Object)} or {@link #fail(Throwable)}.
+     */
+    public HttpFuture() {
+    }
+
+    public static <T> HttpFuture<T> succeeded(T result) {
+        HttpFuture<T> future = new HttpFuture<T>();
+        future.complete(result);
+        return future;
+    }
+
+    public static <T> HttpFuture<T> failed(Throwable error) {
+        HttpFuture<T> future = new HttpFuture<T>();
+        future.fail(error);
+        return future;
+    }
+
+    /**
+     * Completes the future with a result, if it is not done yet. The first
+     * RuntimeException thrown by a listener is thrown from here, once all listeners were called.
+     * @return true if this call completed the future.
+     */
+    public boolean complete(T result) {
+        return finish(SUCCEEDED, result, null);
+    }
+
+    /**
+     * Completes the future with an error, if it is not done yet. The first
+     * RuntimeException thrown by a listener is thrown from here, once all listeners were called.
+     * @return true if this call completed the future.
+     */
+    public boolean fail(Throwable error) {
+        return finish(FAILED, null, error);
+    }
+
+    /**
+     * Cancels the future and the request producing its result.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        RuntimeException listenerError = null;
+        try {
+            if(!finish(CANCELLED, null, new CancellationException())) {
+                return false;
+            }
+        } catch (RuntimeException e) {
+            // The request is still cancelled
+            listenerError = e;
+        }
+        List<Future<?>> toCancel;
+        synchronized(this) {
+            toCancel = new ArrayList<Future<?>>(upstream);
+            upstream.clear();
+        }
+        for(Future<?> future : toCancel) {
+            future.cancel(mayInterruptIfRunning);
+        }
+        if(listenerError != null) {
+            throw listenerError;
+        }
+        return true;
+    }
+
+    /**
+     * Links a future to this one, so it is cancelled when this one is cancelled.
+     */
+    void addUpstream(Future<?> future) {
+        boolean cancelled;
+        synchronized(this) {
+            cancelled = state == CANCELLED;
+            if(!cancelled && state == PENDING) {
+                upstream.add(future);
+            }
+        }
+        if(cancelled) {
+            future.cancel(true);
+        }
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return state == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return state != PENDING;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while(state == PENDING) {
+            wait();
+        }
+        return report();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while(state == PENDING) {
+            long remaining = deadline - System.nanoTime();
+            if(remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return report();
+    }
+
+    private T report() throws ExecutionException {
+        if(state == CANCELLED) {
+            throw new CancellationException();
+        }
+        if(state == FAILED) {
+            throw new ExecutionException(error);
+        }
+        return result;
+    }
+
+    /**
+     * Adds a listener which is called once the future is done, right away if it is done already.
+     * A cancelled future reports a {@link CancellationException} as failure. A RuntimeException
+     * thrown by the listener is passed on to the caller completing the future, or of this method.
+     */
+    public void addListener(Listener<? super T> listener) {
+        synchronized(this) {
+            if(state == PENDING) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    /**
+     * Returns a future completed with the result of this one mapped by the
+     * function. Failures of this future are passed on.
+     */
+    public <R> HttpFuture<R> thenApply(final Function<? super T, ? extends R> function) {
+        final HttpFuture<R> next = new HttpFuture<R>();
+        next.addUpstream(this);
+        addListener(new Listener<T>() {
+            @Override
+            public void onSuccess(T result) {
+                R mapped;
+                try {
+                    mapped = function.apply(result);
+                } catch (Exception e) {
+                    next.fail(e);
+                    return;
+                }
+                // Outside of the try, so a failing listener of the next future is not taken for a failing function
+                next.complete(mapped);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                next.fail(error);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Returns a future completed with the result of the future the function
+     * returns for the result of this one, for example a dependent request.
+     * Failures of either future are passed on.
+     */
+    public <R> HttpFuture<R> thenCompose(final Function<? super T, ? extends HttpFuture<R>> function) {
+        final HttpFuture<R> next = new HttpFuture<R>();
+        next.addUpstream(this);
+        addListener(new Listener<T>() {
+            @Override
+            public void onSuccess(T result) {
+                HttpFuture<R> inner;
+                try {
+                    inner = function.apply(result);
+                } catch (Exception e) {
+                    next.fail(e);
+                    return;
+                }
+                if(inner == null) {
+                    next.fail(new NullPointerException("Function returned no future"));
+                    return;
+                }
+                next.addUpstream(inner);
+                inner.addListener(new Listener<R>() {
+                    @Override
+                    public void onSuccess(R result) {
+                        next.complete(result);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable error) {
+                        next.fail(error);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                next.fail(error);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Returns a future completed with the results of all futures, in the
+     * same order, once all of them succeeded. It fails as soon as one of them fails.
+     */
+    public static <T> HttpFuture<List<T>> allOf(List<? extends HttpFuture<? extends T>> futures) {
+        final HttpFuture<List<T>> combined = new HttpFuture<List<T>>();
+        final int count = futures.size();
+        if(count == 0) {
+            combined.complete(new ArrayList<T>());
+            return combined;
+        }
+
+        final Object[] results = new Object[count];
+        final AtomicInteger remaining = new AtomicInteger(count);
+        for(int i = 0; i < count; i++) {
+            final int index = i;
+            HttpFuture<? extends T> future = futures.get(i);
+            combined.addUpstream(future);
+            future.addListener(new Listener<T>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public void onSuccess(T result) {
+                    results[index] = result;
+                    if(remaining.decrementAndGet() == 0) {
+                        combined.complete((List<T>) new ArrayList<Object>(Arrays.asList(results)));
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable error) {
+                    combined.fail(error);
+                }
+            });
+        }
+        return combined;
+    }
+
+    /**
+     * Returns a future completed with the result of the first future which
+     * succeeds. It only fails if all of them fail, with the last failure.
+     * The other futures are left running, cancel them if their results are
+     * not needed.
+     */
+    public static <T> HttpFuture<T> anyOf(List<? extends HttpFuture<? extends T>> futures) {
+        final HttpFuture<T> first = new HttpFuture<T>();
+        final int count = futures.size();
+        if(count == 0) {
+            first.fail(new IllegalArgumentException("No futures given"));
+            return first;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(count);
+        for(HttpFuture<? extends T> future : futures) {
+            first.addUpstream(future);
+            future.addListener(new Listener<T>() {
+                @Override
+                public void onSuccess(T result) {
+                    first.complete(result);
+                }
+
+                @Override
+                public void onFailure(Throwable error) {
+                    if(remaining.decrementAndGet() == 0) {
+                        first.fail(error);
+                    }
+                }
+            });
+        }
+        return first;
+    }
+
+    private boolean finish(int newState, T result, Throwable error) {
+        List<Listener<? super T>> toNotify;
+        synchronized(this) {
+            if(state != PENDING) {
+                return false;
+            }
+            this.state = newState;
+            this.result = result;
+            this.error = error;
+            toNotify = listeners;
+            listeners = null;
+            if(newState != CANCELLED) {
+                upstream.clear();
+            }
+            notifyAll();
+        }
+        RuntimeException listenerError = null;
+        for(Listener<? super T> listener : toNotify) {
+            try {
+                notifyListener(listener);
+            } catch (RuntimeException e) {
+                // One failing listener must not keep the others from being called
+                if(listenerError == null) {
+                    listenerError = e;
+                }
+            }
+        }
+        if(listenerError != null) {
+            throw listenerError;
+        }
+        return true;
+    }
+
+    private void notifyListener(Listener<? super T> listener) {
+        // State does not change anymore once the future is done
+        int state;
+        T result;
+        Throwable error;
+        synchronized(this) {
+            state = this.state;
+            result = this.result;
+            error = this.error;
+        }
+        if(state == SUCCEEDED) {
+            listener.onSuccess(result);
+        } else {
+            listener.onFailure(error);
+        }
+    }
+}
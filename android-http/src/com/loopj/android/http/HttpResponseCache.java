@@ -0,0 +1,845 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * A size bounded disk cache for the responses of GET requests. Set it with
+ * {@link AsyncHttpClient#setResponseCache(HttpResponseCache)}.
+ * <p>
+ * Responses are stored as far as the server allows it with its Cache-Control,
+ * Expires, ETag and Last-Modified headers. A fresh response is served from
+ * disk without touching the network. A stale one is revalidated with an
+ * If-None-Match or If-Modified-Since request, and if the server answers with
+ * 304 Not Modified, it is served from disk as well. Once the cache grows over
+ * its maximum size, the least recently used responses are removed.
+ * <p>
+ * A response is written to disk while the response handler reads it, so
+ * caching does not delay the response.
+ * <p>
+ * For example:
+ * <p>
+ * <pre>
+ * AsyncHttpClient client = new AsyncHttpClient();
+ * client.setResponseCache(new HttpResponseCache(new File(context.getCacheDir(), "http"), 10 * 1024 * 1024));
+ * </pre>
+ */
+public class HttpResponseCache {
+    private static final String METADATA_SUFFIX = ".0";
+    private static final String BODY_SUFFIX = ".1";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // Headers which describe the body as it was sent, not as it is stored
+    private static final List<String> UNCACHED_HEADERS = Arrays.asList(
+            "Content-Encoding", "Content-Length", "Transfer-Encoding", "Connection", "Keep-Alive");
+
+    private final File directory;
+    private final long maxSize;
+    private final long maxEntrySize;
+
+    // File name -> size on disk, in least recently used order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(0, 0.75f, true);
+    private long size;
+    private boolean initialized;
+
+    private final AtomicInteger hitCount = new AtomicInteger();
+    private final AtomicInteger missCount = new AtomicInteger();
+    private final AtomicInteger revalidateCount = new AtomicInteger();
+
+    /**
+     * Creates a new HttpResponseCache. The directory is read the first time
+     * the cache is used, so this is safe to call on the UI thread.
+     * @param directory the directory to store the responses in, it should be used by this cache only.
+     * @param maxSize the maximum size of the cache in bytes.
+     */
+    public HttpResponseCache(File directory, long maxSize) {
+        if(maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+        // A single response should not push everything else out
+        this.maxEntrySize = maxSize / 4;
+    }
+
+    /**
+     * @return the number of responses served from the cache without a request.
+     */
+    public int getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return the number of responses which were not in the cache, or changed on the server.
+     */
+    public int getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return the number of responses served from the cache after the server confirmed them with 304 Not Modified.
+     */
+    public int getRevalidateCount() {
+        return revalidateCount.get();
+    }
+
+    /**
+     * @return the size of all cached responses in bytes.
+     */
+    public synchronized long getSize() {
+        initialize();
+        return size;
+    }
+
+    /**
+     * Removes all cached responses.
+     */
+    public synchronized void clear() {
+        initialize();
+        for(String name : entries.keySet()) {
+            new File(directory, name + METADATA_SUFFIX).delete();
+            new File(directory, name + BODY_SUFFIX).delete();
+        }
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Executes the request with the given client, unless it can be answered
+     * from the cache. Cacheable responses are stored as they are read.
+     */
+    public HttpResponse execute(HttpClient client, HttpUriRequest request, HttpContext context) throws IOException {
+        // Leave requests alone which already handle caching themselves
+        if(!"GET".equals(request.getMethod()) || request.containsHeader("If-None-Match")
+                || request.containsHeader("If-Modified-Since") || request.containsHeader("Range")) {
+            return client.execute(request, context);
+        }
+
+        CacheControl requestControl = new CacheControl(request.getHeaders("Cache-Control"), request.getHeaders("Pragma"));
+        String key = request.getURI().toString();
+        String name = getFileName(key);
+
+        CacheEntry entry = null;
+        if(!requestControl.noCache && !requestControl.noStore) {
+            entry = get(name, key);
+        }
+
+        try {
+            long requestTime = System.currentTimeMillis();
+            HttpUriRequest sent = request;
+            if(entry != null) {
+                if(entry.isFresh(requestTime)) {
+                    hitCount.incrementAndGet();
+                    return entry.newResponse();
+                }
+                sent = newConditionalRequest(request, entry.getConditions());
+            }
+
+            HttpResponse response = client.execute(sent, context);
+
+            if(entry != null && response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                if(response.getEntity() != null) {
+                    response.getEntity().consumeContent();
+                }
+                entry.update(response.getAllHeaders(), requestTime);
+                update(name, entry);
+                revalidateCount.incrementAndGet();
+                return entry.newResponse();
+            }
+
+            missCount.incrementAndGet();
+            if(!requestControl.noStore && isStorable(response, requestTime)) {
+                CacheEntry newEntry = new CacheEntry(key, response.getStatusLine().getStatusCode(),
+                        response.getStatusLine().getReasonPhrase(), requestTime, getStoredHeaders(response.getAllHeaders()));
+                response.setEntity(new CachingEntity(response.getEntity(), name, newEntry));
+            }
+            return response;
+        } finally {
+            // Only left open if the cached body was not used
+            if(entry != null) {
+                entry.closeBody();
+            }
+        }
+    }
+
+    /**
+     * Copies the request with the conditions of a cached response, the
+     * caller's request is left alone as others may read its headers while it
+     * runs. Aborting the caller's request aborts the copy.
+     */
+    private static HttpUriRequest newConditionalRequest(final HttpUriRequest request, List<Header> conditions) throws IOException {
+        final HttpGet conditional = new HttpGet(request.getURI());
+        conditional.setHeaders(request.getAllHeaders());
+        conditional.setParams(request.getParams());
+        for(Header header : conditions) {
+            conditional.addHeader(header);
+        }
+        if(request instanceof AbortableHttpRequest) {
+            ((AbortableHttpRequest) request).setReleaseTrigger(new ConnectionReleaseTrigger() {
+                public void releaseConnection() {
+                    // Released through the response of the copy
+                }
+
+                public void abortConnection() {
+                    conditional.abort();
+                }
+            });
+        }
+        if(request.isAborted()) {
+            throw new IOException("Request already aborted");
+        }
+        return conditional;
+    }
+
+    private boolean isStorable(HttpResponse response, long requestTime) {
+        if(response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || response.getEntity() == null) {
+            return false;
+        }
+        if(new CacheControl(response.getHeaders("Cache-Control"), response.getHeaders("Pragma")).noStore) {
+            return false;
+        }
+        // Responses varying on request headers other than the encoding would need separate entries
+        for(Header vary : response.getHeaders("Vary")) {
+            for(HeaderElement element : vary.getElements()) {
+                if(!"Accept-Encoding".equalsIgnoreCase(element.getName())) {
+                    return false;
+                }
+            }
+        }
+        long length = response.getEntity().getContentLength();
+        if(length > maxEntrySize) {
+            return false;
+        }
+        List<Header> headers = Arrays.asList(response.getAllHeaders());
+        return getFreshnessLifetime(headers, requestTime) > 0
+                || getHeader(headers, "ETag") != null || getHeader(headers, "Last-Modified") != null;
+    }
+
+    private static List<Header> getStoredHeaders(Header[] headers) {
+        List<Header> stored = new ArrayList<Header>(headers.length);
+        for(Header header : headers) {
+            if(!isUncachedHeader(header.getName())) {
+                stored.add(header);
+            }
+        }
+        return stored;
+    }
+
+    private static boolean isUncachedHeader(String name) {
+        for(String uncached : UNCACHED_HEADERS) {
+            if(uncached.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Header getHeader(List<Header> headers, String name) {
+        for(Header header : headers) {
+            if(header.getName().equalsIgnoreCase(name)) {
+                return header;
+            }
+        }
+        return null;
+    }
+
+    private static Date getDateHeader(List<Header> headers, String name) {
+        Header header = getHeader(headers, name);
+        if(header == null) {
+            return null;
+        }
+        try {
+            return DateUtils.parseDate(header.getValue());
+        } catch (DateParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns how long a response stays fresh after it was received, in milliseconds.
+     */
+    private static long getFreshnessLifetime(List<Header> headers, long responseTime) {
+        List<Header> cacheControlHeaders = new ArrayList<Header>();
+        List<Header> pragmaHeaders = new ArrayList<Header>();
+        for(Header header : headers) {
+            if("Cache-Control".equalsIgnoreCase(header.getName())) {
+                cacheControlHeaders.add(header);
+            } else if("Pragma".equalsIgnoreCase(header.getName())) {
+                pragmaHeaders.add(header);
+            }
+        }
+        CacheControl cacheControl = new CacheControl(cacheControlHeaders.toArray(new Header[0]), pragmaHeaders.toArray(new Header[0]));
+        if(cacheControl.noCache) {
+            return 0;
+        }
+
+        long age = 0;
+        Header ageHeader = getHeader(headers, "Age");
+        if(ageHeader != null) {
+            try {
+                age = Long.parseLong(ageHeader.getValue().trim()) * 1000;
+            } catch (NumberFormatException e) {
+                // Ignore it
+            }
+        }
+        if(cacheControl.maxAgeSeconds >= 0) {
+            return cacheControl.maxAgeSeconds * 1000 - age;
+        }
+
+        Date date = getDateHeader(headers, "Date");
+        long serverTime = date != null ? date.getTime() : responseTime;
+        Date expires = getDateHeader(headers, "Expires");
+        if(expires != null) {
+            return expires.getTime() - serverTime - age;
+        }
+        Date lastModified = getDateHeader(headers, "Last-Modified");
+        if(lastModified != null) {
+            // Heuristic from RFC 2616, a tenth of the time since the last modification
+            return (serverTime - lastModified.getTime()) / 10 - age;
+        }
+        return 0;
+    }
+
+    private static String getFileName(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(hash.length * 2);
+            for(byte b : hash) {
+                int v = b & 0xff;
+                if(v < 16) {
+                    name.append('0');
+                }
+                name.append(Integer.toHexString(v));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+
+    //
+    // Disk storage
+    //
+
+    private void initialize() {
+        if(initialized) {
+            return;
+        }
+        initialized = true;
+        directory.mkdirs();
+        File[] files = directory.listFiles();
+        if(files == null) {
+            return;
+        }
+
+        // Restore the least recently used order from the time of last use
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for(File file : files) {
+            String fileName = file.getName();
+            if(fileName.endsWith(TEMP_SUFFIX)) {
+                // Left over from a write which did not complete
+                file.delete();
+            } else if(fileName.endsWith(METADATA_SUFFIX)) {
+                String name = fileName.substring(0, fileName.length() - METADATA_SUFFIX.length());
+                File body = new File(directory, name + BODY_SUFFIX);
+                if(body.exists()) {
+                    long entrySize = file.length() + body.length();
+                    entries.put(name, entrySize);
+                    size += entrySize;
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        trimToSize();
+    }
+
+    private synchronized CacheEntry get(String name, String key) {
+        initialize();
+        if(entries.get(name) == null) {
+            return null;
+        }
+        File metadata = new File(directory, name + METADATA_SUFFIX);
+        File body = new File(directory, name + BODY_SUFFIX);
+        try {
+            CacheEntry entry = readMetadata(metadata);
+            if(!key.equals(entry.key)) {
+                return null;
+            }
+            entry.bodyLength = body.length();
+            entry.body = new FileInputStream(body);
+            metadata.setLastModified(System.currentTimeMillis());
+            return entry;
+        } catch (IOException e) {
+            remove(name);
+            return null;
+        }
+    }
+
+    private synchronized void put(String name, CacheEntry entry, File tempBody) {
+        initialize();
+        File tempMetadata = null;
+        try {
+            tempMetadata = File.createTempFile(name, TEMP_SUFFIX, directory);
+            writeMetadata(tempMetadata, entry);
+            remove(name);
+            File metadata = new File(directory, name + METADATA_SUFFIX);
+            File body = new File(directory, name + BODY_SUFFIX);
+            if(!tempBody.renameTo(body) || !tempMetadata.renameTo(metadata)) {
+                metadata.delete();
+                body.delete();
+                return;
+            }
+            long entrySize = metadata.length() + body.length();
+            entries.put(name, entrySize);
+            size += entrySize;
+            trimToSize();
+        } catch (IOException e) {
+            // Not cached then
+        } finally {
+            tempBody.delete();
+            if(tempMetadata != null) {
+                tempMetadata.delete();
+            }
+        }
+    }
+
+    private synchronized void update(String name, CacheEntry entry) {
+        if(entries.get(name) == null) {
+            return;
+        }
+        File tempMetadata = null;
+        try {
+            tempMetadata = File.createTempFile(name, TEMP_SUFFIX, directory);
+            writeMetadata(tempMetadata, entry);
+            File metadata = new File(directory, name + METADATA_SUFFIX);
+            long oldSize = entries.get(name);
+            long oldLength = metadata.length();
+            if(tempMetadata.renameTo(metadata)) {
+                long entrySize = oldSize - oldLength + metadata.length();
+                entries.put(name, entrySize);
+                size += entrySize - oldSize;
+            }
+        } catch (IOException e) {
+            // Keep the old metadata
+        } finally {
+            if(tempMetadata != null) {
+                tempMetadata.delete();
+            }
+        }
+    }
+
+    private void remove(String name) {
+        Long entrySize = entries.remove(name);
+        if(entrySize != null) {
+            size -= entrySize;
+        }
+        // Streams opened for the old files can still be read
+        new File(directory, name + METADATA_SUFFIX).delete();
+        new File(directory, name + BODY_SUFFIX).delete();
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while(size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.getValue();
+            new File(directory, eldest.getKey() + METADATA_SUFFIX).delete();
+            new File(directory, eldest.getKey() + BODY_SUFFIX).delete();
+        }
+    }
+
+    private static void writeMetadata(File file, CacheEntry entry) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeUTF(entry.key);
+            out.writeInt(entry.statusCode);
+            out.writeUTF(entry.reasonPhrase != null ? entry.reasonPhrase : "");
+            out.writeLong(entry.responseTime);
+            out.writeLong(entry.freshnessLifetime);
+            out.writeInt(entry.headers.size());
+            for(Header header : entry.headers) {
+                out.writeUTF(header.getName());
+                out.writeUTF(header.getValue() != null ? header.getValue() : "");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static CacheEntry readMetadata(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            String key = in.readUTF();
+            int statusCode = in.readInt();
+            String reasonPhrase = in.readUTF();
+            long responseTime = in.readLong();
+            long freshnessLifetime = in.readLong();
+            int headerCount = in.readInt();
+            List<Header> headers = new ArrayList<Header>(headerCount);
+            for(int i = 0; i < headerCount; i++) {
+                headers.add(new BasicHeader(in.readUTF(), in.readUTF()));
+            }
+            CacheEntry entry = new CacheEntry(key, statusCode, reasonPhrase, responseTime, headers);
+            entry.freshnessLifetime = freshnessLifetime;
+            return entry;
+        } finally {
+            in.close();
+        }
+    }
+
+
+    //
+    // Cache entries
+    //
+
+    private static class CacheControl {
+        boolean noCache;
+        boolean noStore;
+        long maxAgeSeconds = -1;
+
+        public CacheControl(Header[] cacheControlHeaders, Header[] pragmaHeaders) {
+            for(Header header : cacheControlHeaders) {
+                for(HeaderElement element : header.getElements()) {
+                    String name = element.getName();
+                    if("no-cache".equalsIgnoreCase(name)) {
+                        noCache = true;
+                    } else if("no-store".equalsIgnoreCase(name)) {
+                        noStore = true;
+                    } else if("max-age".equalsIgnoreCase(name) && element.getValue() != null) {
+                        try {
+                            maxAgeSeconds = Long.parseLong(element.getValue().trim());
+                        } catch (NumberFormatException e) {
+                            // Ignore it
+                        }
+                    }
+                }
+            }
+            for(Header header : pragmaHeaders) {
+                if(header.getValue() != null && header.getValue().toLowerCase().contains("no-cache")) {
+                    noCache = true;
+                }
+            }
+        }
+    }
+
+    private static class CacheEntry {
+        final String key;
+        final int statusCode;
+        final String reasonPhrase;
+        long responseTime;
+        long freshnessLifetime;
+        List<Header> headers;
+        long bodyLength;
+        InputStream body;
+
+        public CacheEntry(String key, int statusCode, String reasonPhrase, long responseTime, List<Header> headers) {
+            this.key = key;
+            this.statusCode = statusCode;
+            this.reasonPhrase = reasonPhrase;
+            this.responseTime = responseTime;
+            this.headers = headers;
+            this.freshnessLifetime = getFreshnessLifetime(headers, responseTime);
+        }
+
+        public boolean isFresh(long now) {
+            return now - responseTime < freshnessLifetime;
+        }
+
+        public List<Header> getConditions() {
+            List<Header> conditions = new ArrayList<Header>(2);
+            Header etag = getHeader(headers, "ETag");
+            if(etag != null) {
+                conditions.add(new BasicHeader("If-None-Match", etag.getValue()));
+            }
+            Header lastModified = getHeader(headers, "Last-Modified");
+            if(lastModified != null) {
+                conditions.add(new BasicHeader("If-Modified-Since", lastModified.getValue()));
+            }
+            return conditions;
+        }
+
+        /**
+         * Takes the headers of a 304 Not Modified response over.
+         */
+        public void update(Header[] notModifiedHeaders, long time) {
+            List<Header> updated = new ArrayList<Header>(headers);
+            for(Header header : getStoredHeaders(notModifiedHeaders)) {
+                Iterator<Header> iterator = updated.iterator();
+                while(iterator.hasNext()) {
+                    if(iterator.next().getName().equalsIgnoreCase(header.getName())) {
+                        iterator.remove();
+                    }
+                }
+            }
+            updated.addAll(getStoredHeaders(notModifiedHeaders));
+            headers = updated;
+            responseTime = time;
+            freshnessLifetime = getFreshnessLifetime(headers, time);
+        }
+
+        /**
+         * Creates a response reading the cached body. The entry can not be used afterwards.
+         */
+        public HttpResponse newResponse() {
+            BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, statusCode, reasonPhrase));
+            response.setHeaders(headers.toArray(new Header[headers.size()]));
+            InputStreamEntity entity = new InputStreamEntity(body, bodyLength);
+            Header contentType = getHeader(headers, "Content-Type");
+            if(contentType != null) {
+                entity.setContentType(contentType);
+            }
+            response.setEntity(entity);
+            body = null;
+            return response;
+        }
+
+        public void closeBody() {
+            if(body != null) {
+                try {
+                    body.close();
+                } catch (IOException e) {
+                    // Ignore it
+                }
+                body = null;
+            }
+        }
+    }
+
+    /**
+     * Wraps the entity of a cacheable response, so its body is written to the
+     * cache while it is read. The entry is stored once the body is read completely.
+     */
+    private class CachingEntity extends HttpEntityWrapper {
+        private final String name;
+        private final CacheEntry entry;
+        private InputStream content;
+
+        public CachingEntity(HttpEntity wrapped, String name, CacheEntry entry) {
+            super(wrapped);
+            this.name = name;
+            this.entry = entry;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            if(content == null) {
+                content = new CachingInputStream(wrappedEntity.getContent(), name, entry);
+            }
+            return content;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            InputStream in = getContent();
+            try {
+                byte[] buffer = new byte[4096];
+                int l;
+                while((l = in.read(buffer)) != -1) {
+                    outstream.write(buffer, 0, l);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        @Override
+        public void consumeContent() throws IOException {
+            if(content != null) {
+                content.close();
+            }
+            super.consumeContent();
+        }
+    }
+
+    /**
+     * Writes the body to a temp file while it is read, and stores it once
+     * the end is reached. A body which is not read to the end is not cached,
+     * closing or aborting the stream early drops what was written.
+     */
+    private class CachingInputStream extends FilterInputStream implements ConnectionReleaseTrigger {
+        private final String name;
+        private final CacheEntry entry;
+        private File tempBody;
+        private OutputStream cacheOut;
+        private long written;
+
+        public CachingInputStream(InputStream in, String name, CacheEntry entry) {
+            super(in);
+            this.name = name;
+            this.entry = entry;
+            try {
+                synchronized(HttpResponseCache.this) {
+                    initialize();
+                }
+                tempBody = File.createTempFile(name, TEMP_SUFFIX, directory);
+                cacheOut = new BufferedOutputStream(new FileOutputStream(tempBody));
+            } catch (IOException e) {
+                abort();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b == -1) {
+                commit();
+            } else if(cacheOut != null) {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int l = super.read(buffer, offset, count);
+            if(l == -1) {
+                commit();
+            } else if(cacheOut != null) {
+                write(buffer, offset, l);
+            }
+            return l;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Reading the rest only to cache it would keep a reader which stopped early waiting
+            abort();
+            super.close();
+        }
+
+        @Override
+        public void releaseConnection() throws IOException {
+            abort();
+            if(in instanceof ConnectionReleaseTrigger) {
+                ((ConnectionReleaseTrigger) in).releaseConnection();
+            } else {
+                super.close();
+            }
+        }
+
+        @Override
+        public void abortConnection() throws IOException {
+            abort();
+            if(in instanceof ConnectionReleaseTrigger) {
+                ((ConnectionReleaseTrigger) in).abortConnection();
+            } else {
+                super.close();
+            }
+        }
+
+        private void write(byte[] buffer, int offset, int count) {
+            try {
+                cacheOut.write(buffer, offset, count);
+                written += count;
+                if(written > maxEntrySize) {
+                    abort();
+                }
+            } catch (IOException e) {
+                abort();
+            }
+        }
+
+        private void commit() {
+            if(cacheOut == null) {
+                return;
+            }
+            try {
+                cacheOut.close();
+                cacheOut = null;
+                put(name, entry, tempBody);
+            } catch (IOException e) {
+                abort();
+            }
+        }
+
+        private void abort() {
+            if(cacheOut != null) {
+                try {
+                    cacheOut.close();
+                } catch (IOException e) {
+                    // Ignore it
+                }
+                cacheOut = null;
+            }
+            if(tempBody != null) {
+                tempBody.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import org.apache.http.Header;
+
+/**
+ * The immutable outcome of a single request: the status code, headers and
+ * body of the response, or the error which made the request fail.
+ * <p>
+ * A request failed if {@link #getError()} is not null. That happens if no
+ * response was received, in which case the status code is 0, or if the
+ * response status is 300 or above, in which case status code, headers and
+ * body of the response are still available.
+ */
+public class HttpResult {
+    private static final Header[] NO_HEADERS = new Header[0];
+
+    private final int statusCode;
+    private final Header[] headers;
+    private final String body;
+    private final Throwable error;
+
+    public HttpResult(int statusCode, Header[] headers, String body, Throwable error) {
+        this.statusCode = statusCode;
+        this.headers = headers != null ? headers.clone() : NO_HEADERS;
+        this.body = body;
+        this.error = error;
+    }
+
+    /**
+     * @return the HTTP status code of the response, or 0 if no response was received.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the headers of the response, empty if no response was received.
+     */
+    public Header[] getHeaders() {
+        return headers.clone();
+    }
+
+    /**
+     * @param name the name of the header.
+     * @return the first header of the response with the given name, or null if there is none.
+     */
+    public Header getFirstHeader(String name) {
+        for(Header header : headers) {
+            if(header.getName().equalsIgnoreCase(name)) {
+                return header;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the body of the response, or null if there was none.
+     */
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * @return the reason why the request failed, or null if it succeeded.
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+}
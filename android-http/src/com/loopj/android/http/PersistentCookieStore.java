@@ -24,8 +24,14 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.client.CookieStore;
 import org.apache.http.cookie.Cookie;
@@ -43,19 +49,61 @@ import android.text.TextUtils;
  * Instances of this class are designed to be used with
  * {@link AsyncHttpClient#setCookieStore}, but can also be used with a 
  * regular old apache HttpClient/HttpContext if you prefer.
+ * <p>
+ * By default every change is written to disk right away, on the thread which
+ * made it, which is usually a request thread. In write-behind mode changes are
+ * only recorded in memory and written in batches shortly after, on a separate
+ * thread, so a response setting several cookies costs a single write which
+ * does not delay the request. Call {@link #flush()} to write pending changes
+ * right away, for example when the application is about to exit.
  */
 public class PersistentCookieStore implements CookieStore {
     private static final String COOKIE_PREFS = "CookiePrefsFile";
     private static final String COOKIE_NAME_STORE = "names";
     private static final String COOKIE_NAME_PREFIX = "cookie_";
+    private static final long FLUSH_DELAY_MILLIS = 1000;
+
+    private static final ScheduledExecutorService writer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "PersistentCookieStore writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     private final ConcurrentHashMap<String, Cookie> cookies;
     private final SharedPreferences cookiePrefs;
+    private final boolean writeBehind;
+
+    // Changes not yet written in write-behind mode, a null cookie marks a removed one
+    private final Map<String, Cookie> pendingCookies = new HashMap<String, Cookie>();
+    private final Object flushLock = new Object();
+    private boolean flushScheduled;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized(pendingCookies) {
+                flushScheduled = false;
+            }
+            flush();
+        }
+    };
 
     /**
      * Construct a persistent cookie store.
      */
     public PersistentCookieStore(Context context) {
+        this(context, false);
+    }
+
+    /**
+     * Construct a persistent cookie store.
+     * @param writeBehind true to write changes in batches on a background thread, false to write each change right away.
+     */
+    public PersistentCookieStore(Context context, boolean writeBehind) {
+        this.writeBehind = writeBehind;
         cookiePrefs = context.getSharedPreferences(COOKIE_PREFS, 0);
         cookies = new ConcurrentHashMap<String, Cookie>();
 
@@ -89,6 +137,11 @@ public class PersistentCookieStore implements CookieStore {
             cookies.remove(name);
         }
 
+        if(writeBehind) {
+            schedulePersist(name, cookies.get(name));
+            return;
+        }
+
         // Save cookie into persistent store
         SharedPreferences.Editor prefsWriter = cookiePrefs.edit();
         prefsWriter.putString(COOKIE_NAME_STORE, TextUtils.join(",", cookies.keySet()));
@@ -98,6 +151,14 @@ public class PersistentCookieStore implements CookieStore {
 
     @Override
     public void clear() {
+        if(writeBehind) {
+            for(String name : cookies.keySet()) {
+                cookies.remove(name);
+                schedulePersist(name, null);
+            }
+            return;
+        }
+
         // Clear cookies from persistent store
         SharedPreferences.Editor prefsWriter = cookiePrefs.edit();
         for(String name : cookies.keySet()) {
@@ -112,6 +173,18 @@ public class PersistentCookieStore implements CookieStore {
 
     @Override
     public boolean clearExpired(Date date) {
+        if(writeBehind) {
+            boolean clearedAny = false;
+            for(ConcurrentHashMap.Entry<String, Cookie> entry : cookies.entrySet()) {
+                if(entry.getValue().isExpired(date)) {
+                    cookies.remove(entry.getKey());
+                    schedulePersist(entry.getKey(), null);
+                    clearedAny = true;
+                }
+            }
+            return clearedAny;
+        }
+
         boolean clearedAny = false;
         SharedPreferences.Editor prefsWriter = cookiePrefs.edit();
 
@@ -144,6 +217,51 @@ public class PersistentCookieStore implements CookieStore {
         return new ArrayList<Cookie>(cookies.values());
     }
 
+    /**
+     * Writes all pending changes to disk before returning. Only needed in
+     * write-behind mode, otherwise changes are written as they are made.
+     */
+    public void flush() {
+        // One flush at a time, so an older batch never overwrites a newer one
+        synchronized(flushLock) {
+            Map<String, Cookie> changes;
+            synchronized(pendingCookies) {
+                if(pendingCookies.isEmpty()) {
+                    return;
+                }
+                changes = new HashMap<String, Cookie>(pendingCookies);
+                pendingCookies.clear();
+            }
+
+            SharedPreferences.Editor prefsWriter = cookiePrefs.edit();
+            for(Map.Entry<String, Cookie> entry : changes.entrySet()) {
+                Cookie cookie = entry.getValue();
+                if(cookie != null) {
+                    prefsWriter.putString(COOKIE_NAME_PREFIX + entry.getKey(), encodeCookie(new SerializableCookie(cookie)));
+                } else {
+                    prefsWriter.remove(COOKIE_NAME_PREFIX + entry.getKey());
+                }
+            }
+            if(cookies.isEmpty()) {
+                prefsWriter.remove(COOKIE_NAME_STORE);
+            } else {
+                prefsWriter.putString(COOKIE_NAME_STORE, TextUtils.join(",", cookies.keySet()));
+            }
+            prefsWriter.commit();
+        }
+    }
+
+    private void schedulePersist(String name, Cookie cookie) {
+        synchronized(pendingCookies) {
+            // A later change of the same cookie replaces the earlier one
+            pendingCookies.put(name, cookie);
+            if(!flushScheduled) {
+                flushScheduled = true;
+                writer.schedule(flushTask, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
 
     //
     // Cookie serialization/deserialization
@@ -0,0 +1,238 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded {@link ThreadPoolExecutor} which runs queued requests by their
+ * {@link RequestPriority}, so an {@link RequestPriority#IMMEDIATE} request does
+ * not have to wait behind a burst of prefetch requests.
+ * <p>
+ * Up to <code>corePoolSize</code> workers are kept, requests above that are queued.
+ * Only when the queue holds <code>queueCapacity</code> requests the pool grows
+ * towards <code>maximumPoolSize</code>, and after that new requests are passed to
+ * the {@link RejectedExecutionHandler}. Idle workers time out, so an idle client
+ * does not keep any threads alive. Before Android 2.3, where core workers can't
+ * time out, up to <code>corePoolSize</code> idle workers are kept.
+ * <p>
+ * This is the default thread pool of {@link AsyncHttpClient}.
+ */
+public class PriorityThreadPoolExecutor extends ThreadPoolExecutor {
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Creates a new PriorityThreadPoolExecutor with an unbounded queue.
+     * @param corePoolSize the number of workers used before requests are queued.
+     */
+    public PriorityThreadPoolExecutor(int corePoolSize) {
+        this(corePoolSize, corePoolSize, Integer.MAX_VALUE, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Creates a new PriorityThreadPoolExecutor.
+     * @param corePoolSize the number of workers used before requests are queued.
+     * @param maximumPoolSize the number of workers used once the queue is full.
+     * @param queueCapacity the number of requests which may wait in the queue.
+     * @param rejectedHandler the handler to use when both the queue and the workers are exhausted.
+     */
+    public PriorityThreadPoolExecutor(int corePoolSize, int maximumPoolSize, int queueCapacity, RejectedExecutionHandler rejectedHandler) {
+        super(corePoolSize, maximumPoolSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new BoundedPriorityQueue(queueCapacity), new RequestThreadFactory(), rejectedHandler);
+        allowCoreTimeOut();
+    }
+
+    /**
+     * @return the number of requests which may wait in the queue.
+     */
+    public int getQueueCapacity() {
+        return ((BoundedPriorityQueue) getQueue()).getCapacity();
+    }
+
+    /**
+     * Sets the number of requests which may wait in the queue. Lowering it
+     * below the requests already queued drops none of them, new requests
+     * make the pool grow or are rejected until the queue is short enough.
+     * @param queueCapacity the number of requests which may wait in the queue.
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if(queueCapacity <= 0) {
+            throw new IllegalArgumentException("Invalid queue capacity: " + queueCapacity);
+        }
+        ((BoundedPriorityQueue) getQueue()).setCapacity(queueCapacity);
+    }
+
+    /**
+     * Lets core workers time out where the platform supports it, it does
+     * from Android 2.3 on.
+     */
+    private void allowCoreTimeOut() {
+        try {
+            Method method = ThreadPoolExecutor.class.getMethod("allowCoreThreadTimeOut", boolean.class);
+            method.invoke(this, Boolean.TRUE);
+        } catch (Exception e) {
+            // Core workers are kept
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        // Everything in the queue has to be comparable, so wrap plain runnables
+        if(!(command instanceof PriorityFutureTask)) {
+            command = new PriorityFutureTask<Object>(command, null, getPriority(command));
+        }
+        super.execute(command);
+    }
+
+    // The tasks are created here rather than in newTaskFor(), which older platforms do not have
+
+    @Override
+    public Future<?> submit(Runnable task) {
+        return submit(task, null);
+    }
+
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        if(task == null) {
+            throw new NullPointerException();
+        }
+        PriorityFutureTask<T> future = new PriorityFutureTask<T>(task, result, getPriority(task));
+        execute(future);
+        return future;
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        if(task == null) {
+            throw new NullPointerException();
+        }
+        PriorityFutureTask<T> future = new PriorityFutureTask<T>(task, RequestPriority.NORMAL);
+        execute(future);
+        return future;
+    }
+
+    private static RequestPriority getPriority(Runnable runnable) {
+        if(runnable instanceof AsyncHttpRequest) {
+            return ((AsyncHttpRequest) runnable).getPriority();
+        }
+        return RequestPriority.NORMAL;
+    }
+
+    private static class PriorityFutureTask<T> extends FutureTask<T> implements Comparable<PriorityFutureTask<?>> {
+        private final RequestPriority priority;
+        private final long order;
+        private final AsyncHttpRequest request;
+
+        public PriorityFutureTask(Runnable runnable, T value, RequestPriority priority) {
+            super(runnable, value);
+            this.priority = priority;
+            this.order = sequence.getAndIncrement();
+            this.request = runnable instanceof AsyncHttpRequest ? (AsyncHttpRequest) runnable : null;
+        }
+
+        public PriorityFutureTask(Callable<T> callable, RequestPriority priority) {
+            super(callable);
+            this.priority = priority;
+            this.order = sequence.getAndIncrement();
+            this.request = null;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean result = super.cancel(mayInterruptIfRunning);
+            // Aborts the connection, and the first attempt may be done already while a retry is scheduled
+            if(request != null) {
+                request.cancel(mayInterruptIfRunning);
+            }
+            return result;
+        }
+
+        @Override
+        public int compareTo(PriorityFutureTask<?> other) {
+            int result = priority.compareTo(other.priority);
+            if(result == 0) {
+                // Same priority, keep them first in first out
+                result = order < other.order ? -1 : (order == other.order ? 0 : 1);
+            }
+            return result;
+        }
+    }
+
+    private static class BoundedPriorityQueue extends PriorityBlockingQueue<Runnable> {
+        private static final long serialVersionUID = 1L;
+
+        private volatile int capacity;
+
+        public BoundedPriorityQueue(int capacity) {
+            this.capacity = capacity;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public void setCapacity(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        public synchronized boolean offer(Runnable runnable) {
+            // Refusing the offer makes the pool grow, or reject once it is at maximum size
+            if(size() >= capacity) {
+                return false;
+            }
+            return super.offer(runnable);
+        }
+
+        @Override
+        public int remainingCapacity() {
+            return Math.max(0, capacity - size());
+        }
+    }
+
+    private static class RequestThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // Keep request workers from competing with the UI thread
+                    android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "AsyncHttpClient #" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -20,7 +20,6 @@ package com.loopj.android.http;
 
 import java.io.InputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
@@ -128,7 +127,23 @@ public class RequestParams {
      * @param file the file to add.
      */
     public void put(String key, File file) throws FileNotFoundException {
-        put(key, new FileInputStream(file), file.getName());
+        put(key, file, null);
+    }
+
+    /**
+     * Adds a file to the request. The file is not read until the request is
+     * sent, and then it is streamed from disk, so large files can be uploaded.
+     * @param key the key name for the new param.
+     * @param file the file to add.
+     * @param contentType the content type of the file, eg. image/jpeg
+     */
+    public void put(String key, File file, String contentType) throws FileNotFoundException {
+        if(file == null || !file.isFile() || !file.canRead()) {
+            throw new FileNotFoundException(file == null ? null : file.getAbsolutePath());
+        }
+        if(key != null) {
+            fileParams.put(key, new FileWrapper(file, file.getName(), contentType));
+        }
     }
 
     /**
@@ -265,8 +280,11 @@ public class RequestParams {
             int lastIndex = fileParams.entrySet().size() - 1;
             for(ConcurrentHashMap.Entry<String, FileWrapper> entry : fileParams.entrySet()) {
                 FileWrapper file = entry.getValue();
-                if(file.inputStream != null) {
-                    boolean isLast = currentIndex == lastIndex;
+                boolean isLast = currentIndex == lastIndex;
+                if(file.file != null) {
+                    String contentType = file.contentType != null ? file.contentType : "application/octet-stream";
+                    multipartEntity.addPart(entry.getKey(), file.getFileName(), file.file, contentType, isLast);
+                } else if(file.inputStream != null) {
                     if(file.contentType != null) {
                         multipartEntity.addPart(entry.getKey(), file.getFileName(), file.inputStream, file.contentType, isLast);
                     } else {
@@ -316,6 +334,7 @@ public class RequestParams {
     }
 
     private static class FileWrapper {
+        public File file;
         public InputStream inputStream;
         public String fileName;
         public String contentType;
@@ -326,6 +345,12 @@ public class RequestParams {
             this.contentType = contentType;
         }
 
+        public FileWrapper(File file, String fileName, String contentType) {
+            this.file = file;
+            this.fileName = fileName;
+            this.contentType = contentType;
+        }
+
         public String getFileName() {
             if(fileName != null) {
                 return fileName;
@@ -0,0 +1,43 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+/**
+ * Scheduling priority of a request queued in {@link AsyncHttpClient}'s
+ * thread pool. Queued requests are taken in priority order, and in
+ * submission order within the same priority.
+ * <p>
+ * Set it per request with {@link AsyncHttpResponseHandler#setPriority(RequestPriority)}.
+ */
+public enum RequestPriority {
+    /**
+     * Requests the user is actively waiting on, e.g. the content of the current screen.
+     */
+    IMMEDIATE,
+
+    /**
+     * Default priority for requests.
+     */
+    NORMAL,
+
+    /**
+     * Speculative work such as thumbnails or prefetching the next page.
+     */
+    PREFETCH
+}
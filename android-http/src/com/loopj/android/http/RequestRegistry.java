@@ -0,0 +1,124 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps track of the requests in flight by tag, for example the android
+ * Context they were started from, so they can be cancelled together.
+ * Requests remove themselves once they are done, and a tag is dropped with
+ * its last request, so long lived tags neither collect finished requests
+ * nor keep their Context from being collected. It can be used from any
+ * thread, the only lock is held briefly per tag.
+ */
+class RequestRegistry {
+    private final ConcurrentMap<Object, TaggedRequests> requests = new ConcurrentHashMap<Object, TaggedRequests>();
+
+    /**
+     * Adds a request under a tag, until it is removed with {@link #unregister(Object, AsyncHttpRequest)}.
+     */
+    public void register(Object tag, AsyncHttpRequest request) {
+        while(true) {
+            TaggedRequests tagged = requests.get(tag);
+            if(tagged == null) {
+                TaggedRequests created = new TaggedRequests();
+                tagged = requests.putIfAbsent(tag, created);
+                if(tagged == null) {
+                    tagged = created;
+                }
+            }
+            if(tagged.add(request)) {
+                return;
+            }
+            // Emptied and dropped in the meantime, start a new set for the tag
+            requests.remove(tag, tagged);
+        }
+    }
+
+    public void unregister(Object tag, AsyncHttpRequest request) {
+        TaggedRequests tagged = requests.get(tag);
+        if(tagged != null && tagged.remove(request)) {
+            requests.remove(tag, tagged);
+        }
+    }
+
+    /**
+     * Removes all requests under a tag and returns them.
+     */
+    public List<AsyncHttpRequest> removeAll(Object tag) {
+        TaggedRequests tagged = requests.remove(tag);
+        if(tagged == null) {
+            return new ArrayList<AsyncHttpRequest>(0);
+        }
+        return tagged.close();
+    }
+
+    /**
+     * @return the number of requests in flight under a tag.
+     */
+    public int count(Object tag) {
+        TaggedRequests tagged = requests.get(tag);
+        return tagged != null ? tagged.size() : 0;
+    }
+
+    private static class TaggedRequests {
+        private final Set<AsyncHttpRequest> requests = new HashSet<AsyncHttpRequest>(4);
+        // Set once the set is dropped from the registry, it takes no more requests then
+        private boolean closed;
+
+        /**
+         * @return false if the set was closed already.
+         */
+        synchronized boolean add(AsyncHttpRequest request) {
+            if(closed) {
+                return false;
+            }
+            requests.add(request);
+            return true;
+        }
+
+        /**
+         * @return true if the set was emptied and closed, so it has to be dropped.
+         */
+        synchronized boolean remove(AsyncHttpRequest request) {
+            if(closed || !requests.remove(request) || !requests.isEmpty()) {
+                return false;
+            }
+            closed = true;
+            return true;
+        }
+
+        synchronized List<AsyncHttpRequest> close() {
+            closed = true;
+            List<AsyncHttpRequest> removed = new ArrayList<AsyncHttpRequest>(requests);
+            requests.clear();
+            return removed;
+        }
+
+        synchronized int size() {
+            return requests.size();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single timer thread shared by all clients, used to run delayed work for
+ * requests, such as re-enqueueing a request for its next retry. Work run by
+ * the timer has to be short, anything blocking is handed to a thread pool.
+ */
+class RequestTimer {
+    private static final ScheduledExecutorService timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "AsyncHttpClient timer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private RequestTimer() {
+    }
+
+    public static ScheduledFuture<?> schedule(Runnable command, long delayMillis) {
+        return timer.schedule(command, delayMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,244 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.http.HttpEntity;
+
+/**
+ * The body of a response, kept in memory while it is small and written to
+ * a temporary file once it grows larger than a threshold. Passed to
+ * {@link AsyncHttpResponseHandler#onSuccess(int, org.apache.http.Header[], ResponseBody)}
+ * for responses too large to be handled as a String.
+ * <p>
+ * A spilled body is only valid during the callback it is passed to, its
+ * file is deleted afterwards. Use {@link #moveTo(File)} to keep it.
+ */
+public class ResponseBody {
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final byte[] bytes;
+    private File file;
+    private final long length;
+    private boolean released;
+
+    private ResponseBody(byte[] bytes) {
+        this.bytes = bytes;
+        this.file = null;
+        this.length = bytes.length;
+    }
+
+    private ResponseBody(File file, long length) {
+        this.bytes = null;
+        this.file = file;
+        this.length = length;
+    }
+
+    /**
+     * Reads the body of a response, into memory up to the threshold and into
+     * a temporary file beyond it.
+     * @param entity the entity of the response.
+     * @param memoryThreshold the largest body in bytes kept in memory.
+     * @param directory the directory for the temporary file, or null for the default one.
+     */
+    static ResponseBody read(HttpEntity entity, int memoryThreshold, File directory) throws IOException {
+        InputStream in = entity.getContent();
+        if(in == null) {
+            return new ResponseBody(new byte[0]);
+        }
+        try {
+            long contentLength = entity.getContentLength();
+            ByteArrayOutputStream memory = new ByteArrayOutputStream(
+                    contentLength >= 0 && contentLength <= memoryThreshold ? (int) contentLength : BUFFER_SIZE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            // Known to be too large, so nothing is buffered in memory first
+            boolean spill = contentLength > memoryThreshold;
+            while(!spill) {
+                int read = in.read(buffer);
+                if(read == -1) {
+                    return new ResponseBody(memory.toByteArray());
+                }
+                memory.write(buffer, 0, read);
+                spill = memory.size() > memoryThreshold;
+            }
+
+            File file = File.createTempFile("response", ".tmp", directory);
+            boolean complete = false;
+            OutputStream out = new FileOutputStream(file);
+            try {
+                long length = memory.size();
+                memory.writeTo(out);
+                memory = null;
+                int read;
+                while((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    length += read;
+                }
+                complete = true;
+                return new ResponseBody(file, length);
+            } finally {
+                out.close();
+                if(!complete) {
+                    file.delete();
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the length of the body in bytes.
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return true if the body is held in memory, false if it was written to a file.
+     */
+    public boolean isInMemory() {
+        return bytes != null;
+    }
+
+    /**
+     * @return the file holding the body, or null if it is held in memory.
+     */
+    public synchronized File getFile() {
+        return file;
+    }
+
+    /**
+     * Opens a new stream over the whole body.
+     */
+    public synchronized InputStream getContent() throws IOException {
+        if(bytes != null) {
+            return new ByteArrayInputStream(bytes);
+        }
+        checkFile();
+        return new FileInputStream(file);
+    }
+
+    /**
+     * Returns a read only view of the whole body. A spilled body is mapped
+     * from its file, so it is paged in on access rather than read into the heap.
+     */
+    public synchronized ByteBuffer map() throws IOException {
+        if(bytes != null) {
+            return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+        checkFile();
+        RandomAccessFile mapped = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid after the file is closed
+            return mapped.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            mapped.close();
+        }
+    }
+
+    /**
+     * Moves a spilled body to a file of its own, which is kept after the
+     * callback. A body held in memory is written to the target.
+     * @param target the file to move the body to, it is replaced.
+     */
+    public synchronized void moveTo(File target) throws IOException {
+        if(bytes != null) {
+            OutputStream out = new FileOutputStream(target);
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+            return;
+        }
+        checkFile();
+        if(!file.renameTo(target)) {
+            // Renaming does not replace the target everywhere, nor cross file systems
+            target.delete();
+            if(!file.renameTo(target)) {
+                copyTo(target);
+                file.delete();
+            }
+        }
+        file = target;
+        // The body belongs to the caller now
+        released = true;
+    }
+
+    /**
+     * Deletes the file of a spilled body, unless it was moved.
+     */
+    public synchronized void release() {
+        if(file != null && !released) {
+            file.delete();
+        }
+        released = true;
+    }
+
+    /**
+     * @return the body decoded as a String, for bodies held in memory.
+     */
+    String getString(String charset) throws UnsupportedEncodingException {
+        return new String(bytes, charset);
+    }
+
+    /**
+     * @return the body as a byte array, for bodies held in memory.
+     */
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    private void checkFile() throws IOException {
+        if(released && !file.exists()) {
+            throw new IOException("Response body was released");
+        }
+    }
+
+    private void copyTo(File target) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            OutputStream out = new FileOutputStream(target);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.util.EntityUtils;
+
+import android.os.Message;
+
+/**
+ * Collects the outcome of a single request into a {@link HttpResult}, on the
+ * thread running the request. A new one is used for every request, so
+ * concurrent requests do not share any state.
+ */
+class ResultResponseHandler extends AsyncHttpResponseHandler {
+    private HttpResult result;
+
+    @Override
+    protected void sendResponseMessage(HttpResponse response) {
+        StatusLine status = response.getStatusLine();
+        String responseBody = null;
+        Throwable error = null;
+        try {
+            HttpEntity entity = response.getEntity();
+            if(entity != null) {
+                responseBody = EntityUtils.toString(entity, "UTF-8");
+            }
+        } catch(IOException e) {
+            error = e;
+        }
+
+        if(error == null && status.getStatusCode() >= 300) {
+            error = new HttpResponseException(status.getStatusCode(), status.getReasonPhrase());
+        }
+        setResult(new HttpResult(status.getStatusCode(), response.getAllHeaders(), responseBody, error));
+    }
+
+    @Override
+    protected void sendFailureMessage(Throwable e, String responseBody) {
+        // Request failed before a response was received
+        setResult(new HttpResult(0, null, responseBody, e));
+    }
+
+    @Override
+    protected void sendFailureMessage(Throwable e, byte[] responseBody) {
+        sendFailureMessage(e, (String) null);
+    }
+
+    @Override
+    protected void sendCancelMessage() {
+        super.sendCancelMessage();
+        setResult(new HttpResult(0, null, null, new CancellationException("Request was cancelled")));
+    }
+
+    @Override
+    protected void sendMessage(Message msg) {
+        // Start and finish need no dispatching, only the result is of interest
+    }
+
+    private void setResult(HttpResult result) {
+        // Cancellation comes from another thread, only the first outcome counts
+        synchronized(this) {
+            if(this.result != null) {
+                return;
+            }
+            this.result = result;
+        }
+        onResult(result);
+    }
+
+    /**
+     * Called once when the result is known, on the thread running the request,
+     * or on the cancelling thread if the request was cancelled.
+     */
+    protected void onResult(HttpResult result) {
+    }
+
+    public synchronized HttpResult getResult() {
+        if(result == null) {
+            // Request was interrupted before it completed
+            return new HttpResult(0, null, null, new IOException("Request was not completed"));
+        }
+        return result;
+    }
+}
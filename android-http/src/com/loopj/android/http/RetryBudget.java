@@ -0,0 +1,94 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import android.os.SystemClock;
+
+/**
+ * Limits retries to a share of the requests made, so while a backend fails
+ * retries do not multiply the load on it. Retries within a time window may
+ * not exceed the given ratio of the requests started in that window, plus a
+ * minimum number of retries per window, so clients with little traffic
+ * still retry occasional failures.
+ */
+public class RetryBudget {
+    public static final double DEFAULT_RETRY_RATIO = 0.1;
+    public static final int DEFAULT_MIN_RETRIES = 10;
+    public static final int DEFAULT_WINDOW_MILLIS = 10 * 1000;
+
+    private final double retryRatio;
+    private final int minRetries;
+    private final int windowMillis;
+
+    private long windowStart;
+    private int requests;
+    private int retries;
+
+    /**
+     * Creates a budget of 10% retries, and at least 10 retries, per 10 seconds.
+     */
+    public RetryBudget() {
+        this(DEFAULT_RETRY_RATIO, DEFAULT_MIN_RETRIES, DEFAULT_WINDOW_MILLIS);
+    }
+
+    /**
+     * @param retryRatio the share of the requests in a window which may be retried.
+     * @param minRetries the number of retries allowed per window regardless of the number of requests.
+     * @param windowMillis the length of a window in milliseconds.
+     */
+    public RetryBudget(double retryRatio, int minRetries, int windowMillis) {
+        if(retryRatio < 0 || minRetries < 0 || windowMillis <= 0) {
+            throw new IllegalArgumentException("Invalid retry budget");
+        }
+        this.retryRatio = retryRatio;
+        this.minRetries = minRetries;
+        this.windowMillis = windowMillis;
+        this.windowStart = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Called once for each request when it is started, retries are not counted.
+     */
+    public synchronized void onRequest() {
+        roll();
+        requests++;
+    }
+
+    /**
+     * Takes a retry from the budget.
+     * @return false if the budget is used up and the request must not be retried.
+     */
+    public synchronized boolean tryRetry() {
+        roll();
+        if(retries >= minRetries + (int) (requests * retryRatio)) {
+            return false;
+        }
+        retries++;
+        return true;
+    }
+
+    private void roll() {
+        long now = SystemClock.elapsedRealtime();
+        if(now - windowStart >= windowMillis) {
+            windowStart = now;
+            requests = 0;
+            retries = 0;
+        }
+    }
+}
@@ -29,6 +29,7 @@ import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Random;
 
 import javax.net.ssl.SSLException;
 
@@ -38,10 +39,23 @@ import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.protocol.ExecutionContext;
 import org.apache.http.protocol.HttpContext;
 
-import android.os.SystemClock;
-
+/**
+ * Decides which failed requests are retried and how long to wait before the
+ * next attempt. The wait is not done here: {@link AsyncHttpRequest} schedules
+ * the next attempt after {@link #getRetryDelay(int)}, so the worker thread is
+ * free in the meantime.
+ * <p>
+ * The delay grows exponentially from the initial backoff up to the maximum
+ * backoff, and a random jitter of up to half the delay is applied, so requests
+ * which failed together do not retry in lockstep. No retry is made once the
+ * request would exceed the maximum elapsed time since its first attempt.
+ */
 class RetryHandler implements HttpRequestRetryHandler {
-    private static final int RETRY_SLEEP_TIME_MILLIS = 1500;
+    static final int DEFAULT_INITIAL_BACKOFF_MILLIS = 1000;
+    static final int DEFAULT_MAX_BACKOFF_MILLIS = 16 * 1000;
+    static final int DEFAULT_MAX_ELAPSED_MILLIS = 60 * 1000;
+
+    private static final Random random = new Random();
     private static HashSet<Class<?>> exceptionWhitelist = new HashSet<Class<?>>();
     private static HashSet<Class<?>> exceptionBlacklist = new HashSet<Class<?>>();
 
@@ -60,9 +74,19 @@ class RetryHandler implements HttpRequestRetryHandler {
     }
 
     private final int maxRetries;
+    private final int initialBackoffMillis;
+    private final int maxBackoffMillis;
+    private final int maxElapsedMillis;
 
     public RetryHandler(int maxRetries) {
+        this(maxRetries, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS, DEFAULT_MAX_ELAPSED_MILLIS);
+    }
+
+    public RetryHandler(int maxRetries, int initialBackoffMillis, int maxBackoffMillis, int maxElapsedMillis) {
         this.maxRetries = maxRetries;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.maxElapsedMillis = maxElapsedMillis;
     }
 
     @Override
@@ -93,14 +117,45 @@ class RetryHandler implements HttpRequestRetryHandler {
             retry = !requestType.equals("POST");
         }
 
-        if(retry) {
-            SystemClock.sleep(RETRY_SLEEP_TIME_MILLIS);
-        } else {
+        if(!retry) {
             exception.printStackTrace();
         }
 
         return retry;
     }
+
+    /**
+     * Returns the time to wait before the given attempt is retried.
+     * @param executionCount the number of attempts made so far, starting with 1.
+     * @return the delay in milliseconds.
+     */
+    public long getRetryDelay(int executionCount) {
+        long delay = initialBackoffMillis;
+        for(int i = 1; i < executionCount && delay < maxBackoffMillis; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxBackoffMillis);
+        if(delay <= 1) {
+            return delay;
+        }
+        // Wait at least half of the delay, the rest is random
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+
+    /**
+     * @return the maximum number of retries per request.
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @return the time in milliseconds since the first attempt after which a request is not retried anymore.
+     */
+    public int getMaxElapsedMillis() {
+        return maxElapsedMillis;
+    }
     
     protected boolean isInList(HashSet<Class<?>> list, Throwable error) {
     	Iterator<Class<?>> itr = list.iterator();
@@ -0,0 +1,564 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.message.BasicHeader;
+
+import android.os.Message;
+import android.os.SystemClock;
+
+/**
+ * Downloads large files in several parts at once. A first request for a
+ * single byte tells the size of the file and whether the server supports
+ * ranges. The file is then split into segments, which are requested in
+ * parallel with Range requests through the {@link AsyncHttpClient}, and each
+ * segment is written at its offset into a preallocated <code>.part</code>
+ * file. Once all segments are written, the file is synced to disk and
+ * renamed to the target, like with {@link FileDownloadHandler}.
+ * <p>
+ * A segment which fails part way is requested again from where it
+ * stopped. Whenever a segment is done, the largest segment still running
+ * is split and its second half is requested separately, so a slow
+ * connection does not hold up the whole download.
+ * <p>
+ * If the server does not support ranges, the first request already
+ * returns the whole file, which is then saved as a plain download.
+ * <p>
+ * For example:
+ * <p>
+ * <pre>
+ * SegmentedDownloader downloader = new SegmentedDownloader(client);
+ * HttpFuture&lt;File&gt; download = downloader.download("http://www.example.com/video.mp4",
+ *         new FileDownloadHandler(new File(dir, "video.mp4")) {
+ *     &#064;Override
+ *     public void onProgress(long bytesWritten, long totalBytes) {
+ *         progressBar.setProgress((int) (bytesWritten * 100 / totalBytes));
+ *     }
+ * });
+ * </pre>
+ * Cancelling the returned future cancels the requests of all segments.
+ */
+public class SegmentedDownloader {
+    public static final int DEFAULT_SEGMENT_COUNT = 4;
+    public static final long DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENT_RETRIES = 3;
+
+    // Splitting a segment smaller than this costs more than it saves
+    private static final long MIN_SPLIT_SIZE = 256 * 1024;
+    private static final long PROGRESS_INTERVAL_MILLIS = 100;
+
+    private final AsyncHttpClient client;
+    private final int segmentCount;
+    private final long minSegmentSize;
+    private int maxSegmentRetries = DEFAULT_MAX_SEGMENT_RETRIES;
+
+    /**
+     * Creates a new SegmentedDownloader, which downloads up to 4 segments at once.
+     * @param client the client to make the requests with.
+     */
+    public SegmentedDownloader(AsyncHttpClient client) {
+        this(client, DEFAULT_SEGMENT_COUNT, DEFAULT_MIN_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates a new SegmentedDownloader.
+     * <p>
+     * Each segment keeps a worker of the client's thread pool and a pooled
+     * connection busy while it is downloaded, so the segment count should
+     * stay well below the client's maximum number of connections.
+     * @param client the client to make the requests with.
+     * @param segmentCount the number of segments downloaded at once.
+     * @param minSegmentSize the size in bytes below which a file is not split further.
+     */
+    public SegmentedDownloader(AsyncHttpClient client, int segmentCount, long minSegmentSize) {
+        if(client == null) {
+            throw new IllegalArgumentException("Client must not be null");
+        }
+        if(segmentCount < 1 || minSegmentSize < 1) {
+            throw new IllegalArgumentException("Segment count and size must be positive");
+        }
+        this.client = client;
+        this.segmentCount = segmentCount;
+        this.minSegmentSize = minSegmentSize;
+    }
+
+    /**
+     * Sets how often a segment which failed part way is requested again
+     * before the whole download fails. Failures to connect are retried by
+     * the client as usual, and do not count.
+     * @param maxSegmentRetries the number of times each segment may be requested again.
+     */
+    public void setMaxSegmentRetries(int maxSegmentRetries) {
+        this.maxSegmentRetries = maxSegmentRetries;
+    }
+
+    public int getMaxSegmentRetries() {
+        return maxSegmentRetries;
+    }
+
+    /**
+     * Downloads a file in segments. The handler receives the start,
+     * progress, success or failure and finish callbacks of the whole
+     * download, it is not given to the client itself. Its priority and
+     * connect and read timeouts apply to the request of each segment.
+     * @param url the URL of the file.
+     * @param handler the handler to report to, which also tells the file to save to.
+     * @return a future completed with the file once it is complete, cancel it to cancel the download.
+     */
+    public HttpFuture<File> download(String url, FileDownloadHandler handler) {
+        Download download = new Download(url, handler);
+        download.start();
+        return download.future;
+    }
+
+    private class Download {
+        private final String url;
+        private final FileDownloadHandler handler;
+        private final HttpFuture<File> future = new HttpFuture<File>();
+        private final List<Segment> segments = new ArrayList<Segment>();
+        private final AtomicLong bytesWritten = new AtomicLong();
+        private final AtomicLong lastProgress = new AtomicLong();
+
+        private long totalBytes;
+        private String validator;
+        private Header[] headers;
+        private RandomAccessFile file;
+        private FileChannel channel;
+        private int running;
+        private volatile boolean done;
+
+        public Download(String url, FileDownloadHandler handler) {
+            this.url = url;
+            this.handler = handler;
+        }
+
+        public void start() {
+            future.addListener(new HttpFuture.Listener<File>() {
+                @Override
+                public void onSuccess(File result) {}
+
+                @Override
+                public void onFailure(Throwable error) {
+                    if(error instanceof CancellationException) {
+                        cancel();
+                    }
+                }
+            });
+            handler.sendStartMessage();
+            send(new ProbeHandler(), 0, 0);
+        }
+
+        private void send(AsyncHttpResponseHandler segmentHandler, long first, long last) {
+            List<Header> requestHeaders = new ArrayList<Header>();
+            requestHeaders.add(new BasicHeader("Range", "bytes=" + first + "-" + last));
+            // Ranges of a compressed body can't be written at their offset in the file
+            requestHeaders.add(new BasicHeader("Accept-Encoding", "identity"));
+            if(validator != null) {
+                // Parts of a changed file would not fit the parts written so far
+                requestHeaders.add(new BasicHeader("If-Range", validator));
+            }
+            segmentHandler.setTag(this);
+            segmentHandler.setPriority(handler.getPriority());
+            segmentHandler.setTimeouts(0, handler.getConnectTimeout(), handler.getReadTimeout());
+            client.get(null, url, requestHeaders.toArray(new Header[requestHeaders.size()]), null, segmentHandler);
+        }
+
+        private void send(Segment segment) {
+            send(new SegmentHandler(segment), segment.position, segment.end - 1);
+        }
+
+        /**
+         * Handles the response to the first request, which tells how to download the file.
+         */
+        private void onProbe(HttpResponse response) {
+            if(future.isDone()) {
+                release(response);
+                return;
+            }
+            StatusLine status = response.getStatusLine();
+            Header contentRange = response.getFirstHeader("Content-Range");
+            Matcher matcher = contentRange != null ? FileDownloadHandler.CONTENT_RANGE.matcher(contentRange.getValue().trim()) : null;
+            if(status.getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT || matcher == null || !matcher.matches() || "*".equals(matcher.group(3))) {
+                saveWhole(response);
+                return;
+            }
+            release(response);
+
+            synchronized(this) {
+                if(done) {
+                    return;
+                }
+                totalBytes = Long.parseLong(matcher.group(3));
+                validator = FileDownloadHandler.getValidator(response);
+                headers = response.getAllHeaders();
+                try {
+                    file = new RandomAccessFile(handler.getPartFile(), "rw");
+                    // Reserves the space up front, so the segments fill in a file of the final size
+                    file.setLength(totalBytes);
+                    channel = file.getChannel();
+                } catch(IOException e) {
+                    fail(e);
+                    return;
+                }
+
+                long count = Math.max(1, Math.min(segmentCount, totalBytes / minSegmentSize));
+                long size = totalBytes / count;
+                for(int i = 0; i < count; i++) {
+                    long end = i == count - 1 ? totalBytes : (i + 1) * size;
+                    segments.add(new Segment(i * size, end));
+                }
+                running = segments.size();
+                if(totalBytes == 0) {
+                    complete();
+                    return;
+                }
+            }
+            for(Segment segment : new ArrayList<Segment>(segments)) {
+                send(segment);
+            }
+        }
+
+        /**
+         * Saves the body of a response which is not a range, as the server sent the whole file.
+         */
+        private void saveWhole(HttpResponse response) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if(statusCode >= 300 || response.getEntity() == null) {
+                // Reports the failure with the body of the response
+                handler.sendResponseMessage(response);
+                handler.sendFinishMessage();
+                future.fail(new HttpResponseException(statusCode, response.getStatusLine().getReasonPhrase()));
+                return;
+            }
+            try {
+                handler.saveBody(response);
+            } catch(IOException e) {
+                handler.getPartFile().delete();
+                handler.sendFailureMessage(e, (String) null);
+                handler.sendFinishMessage();
+                future.fail(e);
+                return;
+            }
+            handler.sendSuccessMessage(statusCode, response.getAllHeaders(), handler.getFile());
+            handler.sendFinishMessage();
+            future.complete(handler.getFile());
+        }
+
+        private void onSegmentDone() {
+            Segment split = null;
+            synchronized(this) {
+                if(done) {
+                    return;
+                }
+                running--;
+                // Takes over the second half of the segment with the most left to do
+                Segment largest = null;
+                for(Segment segment : segments) {
+                    if(largest == null || segment.getRemaining() > largest.getRemaining()) {
+                        largest = segment;
+                    }
+                }
+                if(largest != null && largest.getRemaining() >= 2 * MIN_SPLIT_SIZE) {
+                    split = largest.split();
+                    segments.add(split);
+                    running++;
+                }
+                if(running == 0) {
+                    complete();
+                    return;
+                }
+            }
+            if(split != null) {
+                send(split);
+            }
+        }
+
+        private void onSegmentFailed(Segment segment, Throwable error) {
+            synchronized(this) {
+                if(done) {
+                    return;
+                }
+                if(!(error instanceof IOException) || ++segment.retries > maxSegmentRetries) {
+                    fail(error);
+                    return;
+                }
+            }
+            // Continues after what was written so far
+            send(segment);
+        }
+
+        private void onProgress(long written) {
+            if(done) {
+                return;
+            }
+            long now = SystemClock.uptimeMillis();
+            long last = lastProgress.get();
+            if(now - last >= PROGRESS_INTERVAL_MILLIS && lastProgress.compareAndSet(last, now)) {
+                handler.sendProgressMessage(written, totalBytes);
+            }
+        }
+
+        private void complete() {
+            // Called while holding the lock
+            done = true;
+            try {
+                channel.force(true);
+                close();
+                handler.moveToTarget(handler.getPartFile());
+            } catch(IOException e) {
+                handler.getPartFile().delete();
+                handler.sendFailureMessage(e, (String) null);
+                handler.sendFinishMessage();
+                future.fail(e);
+                return;
+            }
+            handler.sendProgressMessage(totalBytes, totalBytes);
+            handler.sendSuccessMessage(HttpStatus.SC_OK, headers, handler.getFile());
+            handler.sendFinishMessage();
+            future.complete(handler.getFile());
+        }
+
+        private void fail(Throwable error) {
+            // Called while holding the lock
+            done = true;
+            client.cancelRequestsByTag(this, true);
+            close();
+            handler.getPartFile().delete();
+            handler.sendFailureMessage(error, (String) null);
+            handler.sendFinishMessage();
+            future.fail(error);
+        }
+
+        private synchronized void cancel() {
+            if(done) {
+                return;
+            }
+            done = true;
+            client.cancelRequestsByTag(this, true);
+            close();
+            handler.getPartFile().delete();
+            handler.sendCancelMessage();
+        }
+
+        private void close() {
+            if(file != null) {
+                try {
+                    file.close();
+                } catch(IOException e) {
+                    // Nothing left to release
+                }
+            }
+        }
+
+        private void release(HttpResponse response) {
+            HttpEntity entity = response.getEntity();
+            if(entity != null) {
+                try {
+                    entity.consumeContent();
+                } catch(IOException e) {
+                    // The connection is not reused
+                }
+            }
+        }
+
+        private class ProbeHandler extends AsyncHttpResponseHandler {
+            @Override
+            protected boolean isStreaming() {
+                return true;
+            }
+
+            @Override
+            protected void sendResponseMessage(HttpResponse response) {
+                onProbe(response);
+            }
+
+            @Override
+            protected void sendFailureMessage(Throwable e, String responseBody) {
+                synchronized(Download.this) {
+                    if(!done) {
+                        fail(e);
+                    }
+                }
+            }
+
+            @Override
+            protected void sendFailureMessage(Throwable e, byte[] responseBody) {
+                sendFailureMessage(e, (String) null);
+            }
+
+            @Override
+            protected void sendMessage(Message msg) {
+                // The download reports to its own handler
+            }
+        }
+
+        private class SegmentHandler extends AsyncHttpResponseHandler {
+            private final Segment segment;
+            private final long first;
+            private final long end;
+
+            public SegmentHandler(Segment segment) {
+                this.segment = segment;
+                this.first = segment.position;
+                this.end = segment.end;
+            }
+
+            @Override
+            protected boolean isStreaming() {
+                return true;
+            }
+
+            @Override
+            protected void sendResponseMessage(HttpResponse response) {
+                InputStream in = null;
+                boolean complete = false;
+                try {
+                    StatusLine status = response.getStatusLine();
+                    if(status.getStatusCode() == HttpStatus.SC_OK) {
+                        // If-Range did not match, the file changed since the download started
+                        throw new IllegalStateException("File changed during the download");
+                    }
+                    if(status.getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT) {
+                        throw new HttpResponseException(status.getStatusCode(), status.getReasonPhrase());
+                    }
+                    Header contentRange = response.getFirstHeader("Content-Range");
+                    Matcher matcher = contentRange != null ? FileDownloadHandler.CONTENT_RANGE.matcher(contentRange.getValue().trim()) : null;
+                    if(matcher == null || !matcher.matches() || Long.parseLong(matcher.group(1)) != first) {
+                        throw new IOException("Server sent the wrong range");
+                    }
+                    in = response.getEntity().getContent();
+                    writeSegment(in);
+                    complete = true;
+                } catch(Throwable e) {
+                    onSegmentFailed(segment, e);
+                    return;
+                } finally {
+                    if(!complete && in != null) {
+                        FileDownloadHandler.abort(in);
+                    }
+                }
+                onSegmentDone();
+            }
+
+            private void writeSegment(InputStream in) throws IOException {
+                byte[] buffer = FileDownloadHandler.obtainBuffer();
+                try {
+                    while(true) {
+                        long remaining = segment.getRemaining();
+                        if(remaining == 0) {
+                            break;
+                        }
+                        int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if(read == -1) {
+                            throw new IOException("Segment ended early");
+                        }
+                        onProgress(bytesWritten.addAndGet(segment.write(channel, ByteBuffer.wrap(buffer, 0, read))));
+                    }
+                    if(segment.end < end) {
+                        // The rest of the range belongs to another segment now
+                        FileDownloadHandler.abort(in);
+                    } else {
+                        // At the end of the body, this releases the connection for reuse
+                        in.close();
+                    }
+                } finally {
+                    FileDownloadHandler.recycleBuffer(buffer);
+                }
+            }
+
+            @Override
+            protected void sendFailureMessage(Throwable e, String responseBody) {
+                onSegmentFailed(segment, e);
+            }
+
+            @Override
+            protected void sendFailureMessage(Throwable e, byte[] responseBody) {
+                onSegmentFailed(segment, e);
+            }
+
+            @Override
+            protected void sendMessage(Message msg) {
+                // The download reports to its own handler
+            }
+        }
+    }
+
+    /**
+     * A range of the file, from position up to end, which one request at a time writes.
+     */
+    private static class Segment {
+        private volatile long position;
+        private volatile long end;
+        private int retries;
+
+        public Segment(long position, long end) {
+            this.position = position;
+            this.end = end;
+        }
+
+        public synchronized long getRemaining() {
+            return end - position;
+        }
+
+        /**
+         * Writes the buffer at the current position, without going past the end.
+         * @return the number of bytes written.
+         */
+        public synchronized int write(FileChannel channel, ByteBuffer buffer) throws IOException {
+            // The end may have moved since the bytes were read, if the segment was split
+            int length = (int) Math.min(buffer.remaining(), end - position);
+            buffer.limit(buffer.position() + length);
+            long offset = position;
+            while(buffer.hasRemaining()) {
+                offset += channel.write(buffer, offset);
+            }
+            position += length;
+            return length;
+        }
+
+        /**
+         * Shortens this segment to the first half of what is left.
+         * @return a new segment for the second half.
+         */
+        public synchronized Segment split() {
+            long middle = position + (end - position) / 2;
+            Segment second = new Segment(middle, end);
+            end = middle;
+            return second;
+        }
+    }
+}
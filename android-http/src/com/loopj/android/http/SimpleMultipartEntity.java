@@ -24,27 +24,42 @@
 package com.loopj.android.http;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.InputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.message.BasicHeader;
 
+/**
+ * A multipart/form-data entity which streams its parts when it is written.
+ * <p>
+ * Nothing is buffered in memory except the part headers and string values.
+ * File parts are read from disk only when the entity is written, through a
+ * {@link FileChannel}, so uploading a large file does not need any extra heap.
+ * The content length is computed from the part sizes. As long as the entity
+ * only has string and file parts it is repeatable, so a failed request can be
+ * sent again. Input stream parts can only be read once, an entity with such
+ * parts has an unknown length and is sent chunked.
+ */
 class SimpleMultipartEntity implements HttpEntity {
     private final static char[] MULTIPART_CHARS = "-_1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+    private final static byte[] CR_LF = "\r\n".getBytes();
 
     private String boundary = null;
 
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    boolean isSetLast = false;
-    boolean isSetFirst = false;
+    private final List<Part> parts = new ArrayList<Part>();
 
     public SimpleMultipartEntity() {
         final StringBuffer buf = new StringBuffer();
@@ -56,47 +71,11 @@ class SimpleMultipartEntity implements HttpEntity {
 
     }
 
-    public void writeFirstBoundaryIfNeeds(){
-        if(!isSetFirst){
-            writeBoundary();
-        }
-
-        isSetFirst = true;
-    }
-
-    public void writeBoundary() {
-        try {
-            out.write(("--" + boundary + "\r\n").getBytes());
-        } catch (final IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    public void writeLastBoundaryIfNeeds() {
-        if(isSetLast){
-            return;
-        }
-
-        try {
-            out.write(("--" + boundary + "--\r\n").getBytes());
-            out.flush();
-        } catch (final IOException e) {
-            e.printStackTrace();
-        }
-        
-        isSetLast = true;
-    }
-
     public void addPart(final String key, final String value, final String contentType) {
-        writeBoundary();
-        try {
-            out.write(("Content-Disposition: form-data; name=\"" +key+"\"\r\n").getBytes());
-            out.write(("Content-Type: " + contentType + "\r\n\r\n").getBytes());
-            out.write(value.getBytes());
-            out.write(("\r\n").getBytes());
-        } catch (final IOException e) {
-            e.printStackTrace();
-        }
+        String header = "--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"" + key + "\"\r\n"
+                + "Content-Type: " + contentType + "\r\n\r\n";
+        parts.add(new BytesPart(header.getBytes(), value.getBytes()));
     }
 
     public void addPart(final String key, final String value) {
@@ -108,43 +87,40 @@ class SimpleMultipartEntity implements HttpEntity {
     }
 
     public void addPart(final String key, final String fileName, final InputStream fin, String type, final boolean isLast){
-        writeBoundary();
-        try {
-            type = "Content-Type: "+type+"\r\n";
-            out.write(("Content-Disposition: form-data; name=\""+ key+"\"; filename=\"" + fileName + "\"\r\n").getBytes());
-            out.write(type.getBytes());
-            out.write("Content-Transfer-Encoding: binary\r\n\r\n".getBytes());
-
-            final byte[] tmp = new byte[4096];
-            int l = 0;
-            while ((l = fin.read(tmp)) != -1) {
-                out.write(tmp, 0, l);
-            }
-            out.write(("\r\n").getBytes());
-            
-        } catch (final IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                fin.close();
-            } catch (final IOException e) {
-                e.printStackTrace();
-            }
-        }
+        parts.add(new StreamPart(createFileHeader(key, fileName, type), fin));
     }
 
     public void addPart(final String key, final File value, final boolean isLast) {
-        try {
-            addPart(key, value.getName(), new FileInputStream(value), isLast);
-        } catch (final FileNotFoundException e) {
-            e.printStackTrace();
-        }
+        addPart(key, value.getName(), value, "application/octet-stream", isLast);
+    }
+
+    public void addPart(final String key, final String fileName, final File value, String type, final boolean isLast) {
+        parts.add(new FilePart(createFileHeader(key, fileName, type), value));
+    }
+
+    private byte[] createFileHeader(final String key, final String fileName, final String type) {
+        String header = "--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"" + key + "\"; filename=\"" + fileName + "\"\r\n"
+                + "Content-Type: " + type + "\r\n"
+                + "Content-Transfer-Encoding: binary\r\n\r\n";
+        return header.getBytes();
+    }
+
+    private byte[] getLastBoundary() {
+        return ("--" + boundary + "--\r\n").getBytes();
     }
 
     @Override
     public long getContentLength() {
-        writeLastBoundaryIfNeeds();
-        return out.toByteArray().length;
+        long length = getLastBoundary().length;
+        for (Part part : parts) {
+            long partLength = part.getLength();
+            if (partLength < 0) {
+                return -1;
+            }
+            length += partLength;
+        }
+        return length;
     }
 
     @Override
@@ -154,23 +130,31 @@ class SimpleMultipartEntity implements HttpEntity {
 
     @Override
     public boolean isChunked() {
-        return false;
+        return getContentLength() < 0;
     }
 
     @Override
     public boolean isRepeatable() {
-        return false;
+        for (Part part : parts) {
+            if (!part.isRepeatable()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
     public boolean isStreaming() {
-        return false;
+        return !isRepeatable();
     }
 
     @Override
     public void writeTo(final OutputStream outstream) throws IOException {
-        writeLastBoundaryIfNeeds();
-        outstream.write(out.toByteArray());
+        for (Part part : parts) {
+            part.writeTo(outstream);
+        }
+        outstream.write(getLastBoundary());
+        outstream.flush();
     }
 
     @Override
@@ -181,16 +165,179 @@ class SimpleMultipartEntity implements HttpEntity {
     @Override
     public void consumeContent() throws IOException,
     UnsupportedOperationException {
-        if (isStreaming()) {
-            throw new UnsupportedOperationException(
-            "Streaming entity does not implement #consumeContent()");
+        // Release the input streams of parts which were not sent
+        for (Part part : parts) {
+            part.close();
         }
     }
 
     @Override
     public InputStream getContent() throws IOException,
     UnsupportedOperationException {
-    	writeLastBoundaryIfNeeds();
-        return new ByteArrayInputStream(out.toByteArray());
+        List<InputStream> streams = new ArrayList<InputStream>();
+        for (Part part : parts) {
+            streams.add(part.getContent());
+        }
+        streams.add(new ByteArrayInputStream(getLastBoundary()));
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    /**
+     * A single part of the body, including its boundary and headers.
+     */
+    private static abstract class Part {
+        protected final byte[] header;
+
+        public Part(byte[] header) {
+            this.header = header;
+        }
+
+        /**
+         * @return the length of the part in bytes, or -1 if it is not known.
+         */
+        public abstract long getLength();
+
+        public abstract boolean isRepeatable();
+
+        public abstract void writeTo(OutputStream outstream) throws IOException;
+
+        public abstract InputStream getContent() throws IOException;
+
+        public void close() throws IOException {
+        }
+    }
+
+    private static class BytesPart extends Part {
+        private final byte[] value;
+
+        public BytesPart(byte[] header, byte[] value) {
+            super(header);
+            this.value = value;
+        }
+
+        @Override
+        public long getLength() {
+            return header.length + value.length + CR_LF.length;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            outstream.write(header);
+            outstream.write(value);
+            outstream.write(CR_LF);
+        }
+
+        @Override
+        public InputStream getContent() {
+            byte[] content = new byte[(int) getLength()];
+            System.arraycopy(header, 0, content, 0, header.length);
+            System.arraycopy(value, 0, content, header.length, value.length);
+            System.arraycopy(CR_LF, 0, content, header.length + value.length, CR_LF.length);
+            return new ByteArrayInputStream(content);
+        }
+    }
+
+    private static class FilePart extends Part {
+        private final File file;
+
+        public FilePart(byte[] header, File file) {
+            super(header);
+            this.file = file;
+        }
+
+        @Override
+        public long getLength() {
+            return header.length + file.length() + CR_LF.length;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            outstream.write(header);
+            // Opened on every write, so the entity can be sent again
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                WritableByteChannel target = Channels.newChannel(outstream);
+                long position = 0;
+                long size = channel.size();
+                while (position < size) {
+                    long transferred = channel.transferTo(position, size - position, target);
+                    if (transferred <= 0) {
+                        break;
+                    }
+                    position += transferred;
+                }
+            } finally {
+                in.close();
+            }
+            outstream.write(CR_LF);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            List<InputStream> streams = new ArrayList<InputStream>(3);
+            streams.add(new ByteArrayInputStream(header));
+            streams.add(new FileInputStream(file));
+            streams.add(new ByteArrayInputStream(CR_LF));
+            return new SequenceInputStream(Collections.enumeration(streams));
+        }
+    }
+
+    private static class StreamPart extends Part {
+        private final InputStream in;
+
+        public StreamPart(byte[] header, InputStream in) {
+            super(header);
+            this.in = in;
+        }
+
+        @Override
+        public long getLength() {
+            return -1;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            outstream.write(header);
+            try {
+                final byte[] tmp = new byte[4096];
+                int l = 0;
+                while ((l = in.read(tmp)) != -1) {
+                    outstream.write(tmp, 0, l);
+                }
+            } finally {
+                in.close();
+            }
+            outstream.write(CR_LF);
+        }
+
+        @Override
+        public InputStream getContent() {
+            List<InputStream> streams = new ArrayList<InputStream>(3);
+            streams.add(new ByteArrayInputStream(header));
+            streams.add(in);
+            streams.add(new ByteArrayInputStream(CR_LF));
+            return new SequenceInputStream(Collections.enumeration(streams));
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,249 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+
+/**
+ * Used to intercept and handle the responses from requests made using
+ * {@link AsyncHttpClient}, without holding the whole body in memory. The
+ * body is passed to {@link #onChunk(byte[], int)} while it downloads, on
+ * the thread running the request, so large responses can be processed
+ * with constant memory.
+ * <p>
+ * The reader can be paused with {@link #pause()}, which stops reading from
+ * the socket until {@link #resume()} is called, so a slow consumer slows
+ * down the server instead of buffering, and it can stop reading altogether
+ * with {@link #stop()}. The connection is released as soon as the body is
+ * read, or dropped when reading was stopped early.
+ * <p>
+ * Once the body was read, {@link #onSuccess(int, org.apache.http.Header[], String)}
+ * is called with a null content on the calling thread. Responses with a
+ * status of 300 or higher are not streamed, they fail as with
+ * {@link AsyncHttpResponseHandler}.
+ * <p>
+ * For example:
+ * <p>
+ * <pre>
+ * client.get("http://www.example.com/feed", new StreamingResponseHandler() {
+ *     &#064;Override
+ *     protected void onChunk(byte[] chunk, int length) throws IOException {
+ *         parser.feed(chunk, 0, length);
+ *     }
+ *
+ *     &#064;Override
+ *     public void onSuccess(String content) {
+ *         // The whole feed was processed
+ *     }
+ * });
+ * </pre>
+ */
+public abstract class StreamingResponseHandler extends AsyncHttpResponseHandler {
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024;
+
+    // Chunks of the default size are reused by all handlers
+    private static final int MAX_POOLED_CHUNKS = 16;
+    private static final byte[][] chunkPool = new byte[MAX_POOLED_CHUNKS][];
+    private static int pooledChunks;
+
+    private final int chunkSize;
+    private boolean paused;
+    private boolean stopped;
+
+    /**
+     * Creates a new StreamingResponseHandler which reads the body in chunks of 8 KB.
+     */
+    public StreamingResponseHandler() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize the maximum number of bytes passed to {@link #onChunk(byte[], int)} at once.
+     */
+    public StreamingResponseHandler(int chunkSize) {
+        if(chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Fired on the thread running the request for each part of the body read
+     * from the socket. The chunk is reused afterwards, copy what has to be kept.
+     * Throwing an IOException fails the request.
+     * @param chunk the buffer holding the data, starting at index 0.
+     * @param length the number of bytes read into the buffer.
+     */
+    protected abstract void onChunk(byte[] chunk, int length) throws IOException;
+
+    /**
+     * Stops reading the body until {@link #resume()} is called. Can be called from any thread.
+     */
+    public synchronized void pause() {
+        paused = true;
+    }
+
+    public synchronized void resume() {
+        paused = false;
+        notifyAll();
+    }
+
+    /**
+     * Stops reading the body, the connection is dropped and the request
+     * succeeds with what was read so far. Can be called from any thread.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    @Override
+    protected void sendStartMessage() {
+        synchronized(this) {
+            paused = false;
+            stopped = false;
+        }
+        super.sendStartMessage();
+    }
+
+    @Override
+    synchronized void onRequestAborted() {
+        // Wakes up a paused reader, which then fails as its stream was aborted
+        notifyAll();
+    }
+
+    // Interface to AsyncHttpRequest
+    @Override
+    protected boolean isStreaming() {
+        return true;
+    }
+
+    @Override
+    protected void sendResponseMessage(HttpResponse response) {
+        StatusLine status = response.getStatusLine();
+        HttpEntity entity = response.getEntity();
+        if(status.getStatusCode() >= 300 || entity == null) {
+            super.sendResponseMessage(response);
+            return;
+        }
+
+        byte[] chunk = obtainChunk();
+        InputStream in = null;
+        boolean complete = false;
+        try {
+            in = entity.getContent();
+            while(awaitReading(in)) {
+                int read = in.read(chunk, 0, chunk.length);
+                if(read == -1) {
+                    complete = true;
+                    break;
+                }
+                onChunk(chunk, read);
+            }
+            if(complete) {
+                // At the end of the body, this releases the connection for reuse
+                in.close();
+            }
+        } catch(IOException e) {
+            sendFailureMessage(e, (String) null);
+            return;
+        } finally {
+            if(!complete) {
+                abort(in);
+            }
+            recycleChunk(chunk);
+        }
+        sendSuccessMessage(status.getStatusCode(), response.getAllHeaders(), null);
+    }
+
+    /**
+     * Waits while reading is paused.
+     * @return false if reading was stopped.
+     * @throws IOException if the request was aborted, on cancel or at its deadline.
+     */
+    private synchronized boolean awaitReading(InputStream in) throws IOException {
+        // The stream belongs to this request, the handler may be shared by others
+        AsyncHttpRequest.RequestInputStream requestStream = null;
+        if(in instanceof AsyncHttpRequest.RequestInputStream) {
+            requestStream = (AsyncHttpRequest.RequestInputStream) in;
+        }
+        while(paused && !stopped && (requestStream == null || !requestStream.isAborted())) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while paused");
+            }
+        }
+        if(requestStream != null && requestStream.isAborted()) {
+            throw requestStream.newAbortException();
+        }
+        return !stopped;
+    }
+
+    private static void abort(InputStream in) {
+        if(in == null) {
+            return;
+        }
+        try {
+            // Drops the connection rather than reading the rest of the body
+            if(in instanceof ConnectionReleaseTrigger) {
+                ((ConnectionReleaseTrigger) in).abortConnection();
+            } else {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+
+    private byte[] obtainChunk() {
+        if(chunkSize == DEFAULT_CHUNK_SIZE) {
+            synchronized(chunkPool) {
+                if(pooledChunks > 0) {
+                    byte[] chunk = chunkPool[--pooledChunks];
+                    chunkPool[pooledChunks] = null;
+                    return chunk;
+                }
+            }
+        }
+        return new byte[chunkSize];
+    }
+
+    private static void recycleChunk(byte[] chunk) {
+        if(chunk.length != DEFAULT_CHUNK_SIZE) {
+            return;
+        }
+        synchronized(chunkPool) {
+            if(pooledChunks < MAX_POOLED_CHUNKS) {
+                chunkPool[pooledChunks++] = chunk;
+            }
+        }
+    }
+}
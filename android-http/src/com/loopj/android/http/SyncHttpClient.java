@@ -3,24 +3,44 @@ package com.loopj.android.http;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.protocol.HttpContext;
 
 import android.content.Context;
 import android.os.Message;
 
+/**
+ * An {@link AsyncHttpClient} which executes requests on the calling thread.
+ * <p>
+ * The <code>*Result</code> methods return an immutable {@link HttpResult} for
+ * each call and keep no state in the client, so one instance can be used by
+ * many threads at the same time. The methods returning a string are kept for
+ * compatibility, they report failures through {@link #onRequestFailed(Throwable, String)}.
+ * <p>
+ * The result holds the body as a string, parse it into a model with
+ * the Gson layer, e.g. <code>GSONParser.createObjectFromResponse(clazz, result.getBody())</code>.
+ */
 public abstract class SyncHttpClient extends AsyncHttpClient {
 
-	private int responseCode;
-	/*
-	 * as this is a synchronous request this is just a helping mechanism to pass the result back to this method.
-	 * Therefore the result object has to be a field to be accessible
+	private volatile int responseCode;
+
+	/**
+	 * @deprecated not used by the client anymore, calls return their own {@link HttpResult}.
 	 */
+	@Deprecated
 	protected String result;
+
+	/**
+	 * Writes the outcome of the requests it is passed to into {@link #result}.
+	 * 
+	 * @deprecated not used by the client anymore and not thread safe, use the <code>*Result</code> methods.
+	 */
+	@Deprecated
 	protected AsyncHttpResponseHandler responseHandler = new AsyncHttpResponseHandler() {
 
 		@Override
-		void sendResponseMessage(org.apache.http.HttpResponse response) {
+		protected void sendResponseMessage(org.apache.http.HttpResponse response) {
 			responseCode = response.getStatusLine().getStatusCode();
 			super.sendResponseMessage(response);
 		};
@@ -45,7 +65,25 @@ public abstract class SyncHttpClient extends AsyncHttpClient {
 	};
 
 	/**
-	 * @return the response code for the last request, might be usefull sometimes
+	 * Creates a new SyncHttpClient.
+	 */
+	public SyncHttpClient() {
+		super();
+	}
+
+	/**
+	 * Creates a new SyncHttpClient which makes its requests through the given connection manager, for example
+	 * {@link AsyncHttpClient#getSharedConnectionManager()}.
+	 * 
+	 * @param connectionManager the connection manager to use, or null to create a new one for this client.
+	 */
+	public SyncHttpClient(ClientConnectionManager connectionManager) {
+		super(connectionManager);
+	}
+
+	/**
+	 * @return the response code for the last request made with the string methods by any thread, use
+	 *         {@link HttpResult#getStatusCode()} instead when the client is shared.
 	 */
 	public int getResponseCode() {
 		return responseCode;
@@ -62,82 +100,114 @@ public abstract class SyncHttpClient extends AsyncHttpClient {
 		/*
 		 * will execute the request directly
 		 */
-		new AsyncHttpRequest(client, httpContext, uriRequest, responseHandler).run();
+		AsyncHttpRequest request = new AsyncHttpRequest(client, httpContext, uriRequest, responseHandler);
+		request.setResponseCache(getResponseCache());
+		request.setRetryHandler(getRetryHandler());
+		request.setCircuitBreaker(getCircuitBreaker());
+		request.setRetryBudget(getRetryBudget());
+		request.run();
 	}
 
 	public abstract String onRequestFailed(Throwable error, String content);
 
+	public HttpResult getResult(String url, Header[] headers, RequestParams params) {
+		ResultResponseHandler handler = new ResultResponseHandler();
+		this.get(null, url, headers, params, handler);
+		return handler.getResult();
+	}
+
+	public HttpResult postResult(String url, Header[] headers, RequestParams params, String contentType) {
+		ResultResponseHandler handler = new ResultResponseHandler();
+		this.post(null, url, headers, params, contentType, handler);
+		return handler.getResult();
+	}
+
+	public HttpResult postResult(String url, Header[] headers, HttpEntity entity, String contentType) {
+		ResultResponseHandler handler = new ResultResponseHandler();
+		this.post(null, url, headers, entity, contentType, handler);
+		return handler.getResult();
+	}
+
+	public HttpResult putResult(String url, RequestParams params) {
+		ResultResponseHandler handler = new ResultResponseHandler();
+		this.put(null, url, params, handler);
+		return handler.getResult();
+	}
+
+	public HttpResult putResult(String url, Header[] headers, HttpEntity entity, String contentType) {
+		ResultResponseHandler handler = new ResultResponseHandler();
+		this.put(null, url, headers, entity, contentType, handler);
+		return handler.getResult();
+	}
+
+	public HttpResult deleteResult(String url, Header[] headers) {
+		ResultResponseHandler handler = new ResultResponseHandler();
+		this.delete(null, url, headers, handler);
+		return handler.getResult();
+	}
+
 	public String get(String url) {
-		this.get(url, null, responseHandler);
-		return result;
+		return getContent(getResult(url, null, null));
 	}
 
 	public String get(String url, RequestParams params) {
-		this.get(url, params, responseHandler);
-		/*
-		 * the response handler will have set the result when this line is reached
-		 */
-		return result;
+		return getContent(getResult(url, null, params));
 	}
 
 	public String get(String url, Header[] headers, RequestParams params) {
-		this.get(null, url, headers, params, responseHandler);
-		return result;
+		return getContent(getResult(url, headers, params));
 	}
 
 	public String post(String url) {
-		this.post(url, null, responseHandler);
-		return result;
+		return getContent(postResult(url, null, (RequestParams) null, null));
 	}
 
 	public String post(String url, RequestParams params) {
-		this.post(url, params, responseHandler);
-		return result;
+		return getContent(postResult(url, null, params, null));
 	}
 
 	public String post(String url, HttpEntity entity, String contentType) {
-		this.post(null, url, entity, contentType, responseHandler);
-		return result;
+		return getContent(postResult(url, null, entity, contentType));
 	}
 
 	public String post(String url, Header[] headers, RequestParams params, String contentType) {
-		this.post(null, url, headers, params, contentType, responseHandler);
-		return result;
+		return getContent(postResult(url, headers, params, contentType));
 	}
 
 	public String post(String url, Header[] headers, HttpEntity entity, String contentType) {
-		this.post(null, url, headers, entity, contentType, responseHandler);
-		return result;
+		return getContent(postResult(url, headers, entity, contentType));
 	}
 
 	public String put(String url) {
-		this.put(url, null, responseHandler);
-		return result;
+		return getContent(putResult(url, null));
 	}
 
 	public String put(String url, RequestParams params) {
-		this.put(url, params, responseHandler);
-		return result;
-	} 
+		return getContent(putResult(url, params));
+	}
 
 	public String put(String url, HttpEntity entity, String contentType) {
-		this.put(null, url, entity, contentType, responseHandler);
-		return result;
+		return getContent(putResult(url, null, entity, contentType));
 	}
 
 	public String put(String url, Header[] headers, HttpEntity entity, String contentType) {
-		this.put(null, url, headers, entity, contentType, responseHandler);
-		return result;
+		return getContent(putResult(url, headers, entity, contentType));
 	}
 
 	public String delete(String url) {
-		this.delete(url, responseHandler);
-		return result;
+		return getContent(deleteResult(url, null));
 	}
 
 	public String delete(String url, Header[] headers) {
-		this.delete(null, url, headers, responseHandler);
-		return result;
+		return getContent(deleteResult(url, headers));
+	}
+
+	private String getContent(HttpResult result) {
+		responseCode = result.getStatusCode();
+		if (result.isSuccess()) {
+			return result.getBody();
+		}
+		return onRequestFailed(result.getError(), result.getBody());
 	}
 
 }
\ No newline at end of file
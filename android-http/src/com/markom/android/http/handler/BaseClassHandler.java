@@ -1,5 +1,7 @@
 package com.markom.android.http.handler;
 
+import java.io.Reader;
+
 import com.google.gson.Gson;
 import com.markom.android.http.exceptions.GsonParsingException;
 import com.markom.android.http.model.ServiceResponse;
@@ -73,4 +75,15 @@ public class BaseClassHandler<T> extends BaseGsonHandler<T> {
 		return serviceResponse;
 	}
 
+	@Override
+	protected ServiceResponse<T> parseServiceResponse(Reader reader) throws GsonParsingException {
+		// Create object using GSONParser
+		T data = GSONParser.createObjectFromResponse(clazz, reader);
+
+		// Create new ServiceResponse object and set parsed data
+		ServiceResponse<T> serviceResponse = new ServiceResponse<T>();
+		serviceResponse.setData(data);
+		return serviceResponse;
+	}
+
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package com.markom.android.http.handler;
 
+import java.io.Reader;
 import java.lang.reflect.Type;
 import java.util.Collection;
 
@@ -79,4 +80,15 @@ public class BaseGenericHandler<T> extends BaseGsonHandler<T> {
 		return serviceResponse;
 	}
 
+	@Override
+	protected ServiceResponse<T> parseServiceResponse(Reader reader) throws GsonParsingException {
+		// Create collection using GSONParser
+		T data = GSONParser.createObjectListFromResponse(type, reader);
+
+		// Create new ServiceResponse object and set parsed data
+		ServiceResponse<T> serviceResponse = new ServiceResponse<T>();
+		serviceResponse.setData(data);
+		return serviceResponse;
+	}
+
 }
\ No newline at end of file
@@ -1,6 +1,13 @@
 package com.markom.android.http.handler;
 
+import java.io.IOException;
+import java.io.Reader;
+
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+
+import android.os.Message;
 
 import com.loopj.android.http.AsyncHttpResponseHandler;
 import com.markom.android.http.exceptions.GsonParsingException;
@@ -17,6 +24,14 @@ import com.markom.android.http.parser.GSONParser;
  * {@link BaseClassHandler} for simple objects or {@link BaseGenericHandler} for collection's. For custom json schema
  * extend {@link ServiceResponse} class and either {@link BaseClassHandler} or {@link BaseGenericHandler}, and override
  * parsing method.
+ * <p>
+ * Parsing methods are called in the background thread that executed the request and only parsed
+ * {@link ServiceResponse} is posted back to the calling (typically UI) thread. If parsing method of custom handler
+ * must run on the calling thread disable it with {@link #setParseInBackground(boolean)}.
+ * <p>
+ * For large responses enable {@link #setStreamingParse(boolean)}. The response is then parsed directly from the
+ * response stream in the background thread and {@link BaseGsonHandler#parseServiceResponse(Reader)} is used instead of
+ * {@link BaseGsonHandler#parseServiceResponse(String)}.
  * 
  * @param <T> generic type of data encapsulated by {@link ServiceResponse}.
  * 
@@ -26,6 +41,33 @@ import com.markom.android.http.parser.GSONParser;
  */
 public abstract class BaseGsonHandler<T> extends AsyncHttpResponseHandler {
 
+	protected static final int SUCCESS_SERVICE_RESPONSE_MESSAGE = 200;
+
+	private boolean streamingParse;
+	private boolean parseInBackground = true;
+
+	/**
+	 * Sets whether parsing method is called in the background thread that executed the request. When disabled, string
+	 * response is posted back to the calling thread and parsed there. By default, parsing happens in background.
+	 * 
+	 * @param parseInBackground <code>true</code> to parse in background thread.
+	 */
+	public void setParseInBackground(boolean parseInBackground) {
+		this.parseInBackground = parseInBackground;
+	}
+
+	/**
+	 * Enables parsing directly from the response stream. The response is parsed in the background thread while it is
+	 * read, so the response body is never held as a whole string. Raw string callbacks like
+	 * {@link #onSuccess(String)} are not called for successful responses in this mode. By default, response is read
+	 * into a string before parsing.
+	 * 
+	 * @param streamingParse <code>true</code> to parse directly from the response stream.
+	 */
+	public void setStreamingParse(boolean streamingParse) {
+		this.streamingParse = streamingParse;
+	}
+
 	/**
 	 * Create {@link ServiceResponse} or any of it's subclasses from string response data. Use {@link GSONParser}
 	 * methods to create objects from json string.
@@ -36,6 +78,19 @@ public abstract class BaseGsonHandler<T> extends AsyncHttpResponseHandler {
 	 */
 	protected abstract ServiceResponse<T> parseServiceResponse(String response) throws GsonParsingException;
 
+	/**
+	 * Create {@link ServiceResponse} or any of it's subclasses from response stream. Used instead of
+	 * {@link #parseServiceResponse(String)} when streaming parse is enabled. Use {@link GSONParser} methods to create
+	 * objects from json stream. Called in background thread.
+	 * 
+	 * @param reader response data stream.
+	 * @return {@link ServiceResponse} kind of object or <code>null</code> if streaming parse is not implemented.
+	 * @throws GsonParsingException thrown when gson parsing fails.
+	 */
+	protected ServiceResponse<T> parseServiceResponse(Reader reader) throws GsonParsingException {
+		return null;
+	}
+
 	/**
 	 * Called when request is finished succefully.
 	 * 
@@ -110,31 +165,111 @@ public abstract class BaseGsonHandler<T> extends AsyncHttpResponseHandler {
 	private void handleJsonResponse(int statusCode, Header[] headers, String response) {
 		try {
 			// Try to parse response.
-			ServiceResponse<T> serviceResponse = parseServiceResponse(response);
+			handleServiceResponse(statusCode, headers, response, parseServiceResponse(response));
+		} catch (GsonParsingException e) {
+			// Error triggered while parsing response
+			onFailure(e, response);
+		}
+	}
 
-			// Check if there is existing service response object
-			if (serviceResponse != null) {
+	/**
+	 * Checks parsed service response and calls appropriate callback methods.
+	 * 
+	 * @param statusCode the status code of the response.
+	 * @param headers the headers of the HTTP response.
+	 * @param response raw response data, <code>null</code> if response was parsed from stream.
+	 * @param serviceResponse parsed service response.
+	 */
+	private void handleServiceResponse(int statusCode, Header[] headers, String response,
+			ServiceResponse<T> serviceResponse) {
+		// Check if there is existing service response object
+		if (serviceResponse != null) {
 
-				// Check if there is existing data enapsulated by service response object
-				// data can be null when empty string is retuned as response ""
-				if (serviceResponse.getData() != null) {
+			// Check if there is existing data enapsulated by service response object
+			// data can be null when empty string is retuned as response ""
+			if (serviceResponse.getData() != null) {
 
-					// Everything is parsed well, call success calbacks
+				// Everything is parsed well, call success calbacks
+				if (response != null) {
 					super.onSuccess(statusCode, headers, response);
-					onSuccess(statusCode, headers, serviceResponse);
-
-				} else {
-					// There is no data. Error happened during parsing process trigger error
-					onFailure(new GsonParsingException(), response);
 				}
+				onSuccess(statusCode, headers, serviceResponse);
 
 			} else {
-				// ServiceResponse is null, parsing is not implemented trigger error
-				onFailure(new ParsingNotImplementedException(), response);
+				// There is no data. Error happened during parsing process trigger error
+				onFailure(new GsonParsingException(), response);
 			}
+
+		} else {
+			// ServiceResponse is null, parsing is not implemented trigger error
+			onFailure(new ParsingNotImplementedException(), response);
+		}
+	}
+
+	@Override
+	protected void sendSuccessMessage(int statusCode, Header[] headers, String responseBody) {
+		if (!parseInBackground) {
+			// Response is parsed on the calling thread from onSuccess
+			super.sendSuccessMessage(statusCode, headers, responseBody);
+			return;
+		}
+
+		try {
+			// This runs in background thread, only parsed result is posted back
+			ServiceResponse<T> serviceResponse = parseServiceResponse(responseBody);
+			sendMessage(obtainMessage(SUCCESS_SERVICE_RESPONSE_MESSAGE, new Object[] { statusCode, headers,
+					serviceResponse, responseBody }));
 		} catch (GsonParsingException e) {
-			// Error triggered while parsing response
-			onFailure(e, response);
+			sendFailureMessage(e, responseBody);
+		}
+	}
+
+	@Override
+	protected boolean isStreaming() {
+		return streamingParse;
+	}
+
+	@Override
+	protected void sendResponseMessage(HttpResponse response) {
+		int statusCode = response.getStatusLine().getStatusCode();
+		HttpEntity entity = response.getEntity();
+
+		// Failure responses are small, let them be handled as string
+		if (!streamingParse || entity == null || statusCode >= 300) {
+			super.sendResponseMessage(response);
+			return;
+		}
+
+		try {
+			// Parse directly from the response stream, this runs in background thread
+			ServiceResponse<T> serviceResponse = parseServiceResponse(GSONParser.createResponseReader(entity));
+			sendMessage(obtainMessage(SUCCESS_SERVICE_RESPONSE_MESSAGE, new Object[] { statusCode,
+					response.getAllHeaders(), serviceResponse, null }));
+		} catch (GsonParsingException e) {
+			sendFailureMessage(e, (String) null);
+		} catch (IOException e) {
+			sendFailureMessage(e, (String) null);
+		} finally {
+			try {
+				// Release the connection in case parser didn't read the whole stream
+				entity.consumeContent();
+			} catch (IOException e) {
+				// Connection is released by the client anyway
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	protected void handleMessage(Message msg) {
+		switch (msg.what) {
+		case SUCCESS_SERVICE_RESPONSE_MESSAGE:
+			Object[] response = (Object[]) msg.obj;
+			handleServiceResponse(((Integer) response[0]).intValue(), (Header[]) response[1], (String) response[3],
+					(ServiceResponse<T>) response[2]);
+			break;
+		default:
+			super.handleMessage(msg);
 		}
 	}
 
@@ -1,5 +1,7 @@
 package com.markom.android.http.loader;
 
+import java.io.Reader;
+
 import android.content.Context;
 
 import com.google.gson.Gson;
@@ -77,4 +79,13 @@ public class BaseClassLoader<T> extends BaseGsonLoader<T> {
 		return serviceResponse;
 	}
 
+	@Override
+	protected ServiceResponse<T> parseServiceResponse(Reader reader) throws GsonParsingException {
+		T data = GSONParser.createObjectFromResponse(clazz, reader);
+
+		ServiceResponse<T> serviceResponse = new ServiceResponse<T>();
+		serviceResponse.setData(data);
+		return serviceResponse;
+	}
+
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package com.markom.android.http.loader;
 
+import java.io.Reader;
 import java.lang.reflect.Type;
 import java.util.Collection;
 
@@ -82,4 +83,13 @@ public class BaseGenericLoader<T> extends BaseGsonLoader<T> {
 		return serviceResponse;
 	}
 
+	@Override
+	protected ServiceResponse<T> parseServiceResponse(Reader reader) throws GsonParsingException {
+		T data = GSONParser.createObjectListFromResponse(type, reader);
+
+		ServiceResponse<T> serviceResponse = new ServiceResponse<T>();
+		serviceResponse.setData(data);
+		return serviceResponse;
+	}
+
 }
\ No newline at end of file
@@ -1,13 +1,23 @@
 package com.markom.android.http.loader;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.CookieStore;
+import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 
 import android.content.Context;
+import android.os.Message;
 import android.support.v4.content.AsyncTaskLoader;
 
+import com.loopj.android.http.AsyncHttpClient;
+import com.loopj.android.http.AsyncHttpResponseHandler;
 import com.loopj.android.http.PersistentCookieStore;
 import com.loopj.android.http.RequestParams;
 import com.loopj.android.http.SyncHttpClient;
@@ -26,6 +36,10 @@ import com.markom.android.http.parser.GSONParser;
  * {@link BaseClassLoader} for simple objects or {@link BaseGenericLoader} for collection's. For custom json schema
  * extend {@link ServiceResponse} class and either {@link BaseClassLoader} or {@link BaseGenericLoader}, and override
  * parsing method.
+ * <p>
+ * For large responses enable {@link #setStreamingParse(boolean)}. The response is then parsed directly from the
+ * response stream and {@link BaseGsonLoader#parseServiceResponse(Reader)} is used instead of
+ * {@link BaseGsonLoader#parseServiceResponse(String)}.
  * 
  * @param <T> generic type of data encapsulated by {@link LoaderResponse}.
  * 
@@ -42,10 +56,17 @@ public abstract class BaseGsonLoader<T> extends AsyncTaskLoader<LoaderResponse<T
 	private Header[] headers;
 	private HttpEntity entity;
 	private String contentType;
+	private boolean streamingParse;
+
+	// Client settings, applied again when the client is replaced
+	private CookieStore cookieStore;
+	private String userAgent;
+	private int timeout;
+	private final Map<String, String> clientHeaders = new LinkedHashMap<String, String>();
+	private String username;
+	private String password;
+	private boolean ownConnectionManager;
 
-	// Response informations
-	private String errorResponse;
-	private Throwable errorThrowable;
 	private LoaderResponse<T> data;
 
 	/**
@@ -58,15 +79,8 @@ public abstract class BaseGsonLoader<T> extends AsyncTaskLoader<LoaderResponse<T
 	public BaseGsonLoader(Context context, String url) {
 		super(context);
 
-		this.syncHttpClient = new SyncHttpClient() {
-
-			@Override
-			public String onRequestFailed(Throwable error, String content) {
-				errorThrowable = error;
-				errorResponse = content;
-				return null;
-			}
-		};
+		// Loaders share one connection pool, so they reuse each other's keep-alive connections
+		this.syncHttpClient = createSyncClient(AsyncHttpClient.getSharedConnectionManager());
 
 		this.url = url;
 		this.requestParams = null;
@@ -117,6 +131,17 @@ public abstract class BaseGsonLoader<T> extends AsyncTaskLoader<LoaderResponse<T
 		this.contentType = contentType;
 	}
 
+	/**
+	 * Enables parsing directly from the response stream, so the response body is never held as a whole string. Raw
+	 * response of successful {@link LoaderResponse} is <code>null</code> in this mode. By default, response is read
+	 * into a string before parsing.
+	 * 
+	 * @param streamingParse <code>true</code> to parse directly from the response stream.
+	 */
+	public void setStreamingParse(boolean streamingParse) {
+		this.streamingParse = streamingParse;
+	}
+
 	/**
 	 * Get syncronus client. Syncronus client is since everything happens in loader thread.
 	 * 
@@ -132,6 +157,7 @@ public abstract class BaseGsonLoader<T> extends AsyncTaskLoader<LoaderResponse<T
 	 * @param cookieStore The CookieStore implementation to use, usually an instance of {@link PersistentCookieStore}
 	 */
 	public void setCookieStore(CookieStore cookieStore) {
+		this.cookieStore = cookieStore;
 		syncHttpClient.setCookieStore(cookieStore);
 	}
 
@@ -142,6 +168,7 @@ public abstract class BaseGsonLoader<T> extends AsyncTaskLoader<LoaderResponse<T
 	 * @param userAgent the string to use in the User-Agent header.
 	 */
 	public void setUserAgent(String userAgent) {
+		this.userAgent = userAgent;
 		syncHttpClient.setUserAgent(userAgent);
 	}
 
@@ -151,15 +178,26 @@ public abstract class BaseGsonLoader<T> extends AsyncTaskLoader<LoaderResponse<T
 	 * @param timeout the connect/socket timeout in milliseconds
 	 */
 	public void setTimeout(int timeout) {
+		this.timeout = timeout;
 		syncHttpClient.setTimeout(timeout);
 	}
 
 	/**
 	 * Sets the SSLSocketFactory to user when making requests. By default, a new, default SSLSocketFactory is used.
+	 * <p>
+	 * The socket factory belongs to the connection pool, so the loader stops sharing the pool of other loaders and
+	 * gets a pool of it's own. Settings made on this loader are kept, but the client returned by
+	 * {@link #getSyncClient()} is replaced, so settings made on it directly have to be made again.
 	 * 
 	 * @param sslSocketFactory the socket factory to use for https requests.
 	 */
 	public void setSSLSocketFactory(SSLSocketFactory sslSocketFactory) {
+		if (!ownConnectionManager) {
+			// Passing no connection manager makes the client create one of it's own
+			syncHttpClient = createSyncClient(null);
+			ownConnectionManager = true;
+			applySettings();
+		}
 		syncHttpClient.setSSLSocketFactory(sslSocketFactory);
 	}
 
@@ -170,6 +208,7 @@ public abstract class BaseGsonLoader<T> extends AsyncTaskLoader<LoaderResponse<T
 	 * @param value the contents of the header
 	 */
 	public void addHeader(String header, String value) {
+		clientHeaders.put(header, value);
 		syncHttpClient.addHeader(header, value);
 	}
 
@@ -181,9 +220,49 @@ public abstract class BaseGsonLoader<T> extends AsyncTaskLoader<LoaderResponse<T
 	 * @param password
 	 */
 	public void setAuthentication(String username, String password) {
+		this.username = username;
+		this.password = password;
 		syncHttpClient.setBasicAuth(username, password);
 	}
 
+	/**
+	 * Creates client used by loader.
+	 * 
+	 * @param connectionManager connection manager of the client, or <code>null</code> for a new one.
+	 * @return new {@link SyncHttpClient}.
+	 */
+	private SyncHttpClient createSyncClient(ClientConnectionManager connectionManager) {
+		return new SyncHttpClient(connectionManager) {
+
+			@Override
+			public String onRequestFailed(Throwable error, String content) {
+				// Not used, loader reads failures in its response handler
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Applies settings made on this loader to a new client.
+	 */
+	private void applySettings() {
+		if (cookieStore != null) {
+			syncHttpClient.setCookieStore(cookieStore);
+		}
+		if (userAgent != null) {
+			syncHttpClient.setUserAgent(userAgent);
+		}
+		if (timeout > 0) {
+			syncHttpClient.setTimeout(timeout);
+		}
+		for (Map.Entry<String, String> header : clientHeaders.entrySet()) {
+			syncHttpClient.addHeader(header.getKey(), header.getValue());
+		}
+		if (username != null) {
+			syncHttpClient.setBasicAuth(username, password);
+		}
+	}
+
 	/**
 	 * Create {@link ServiceResponse} or any of it's subclasses from string response data. Use {@link GSONParser}
 	 * methods to create objects from json string.
@@ -194,6 +273,19 @@ public abstract class BaseGsonLoader<T> extends AsyncTaskLoader<LoaderResponse<T
 	 */
 	protected abstract ServiceResponse<T> parseServiceResponse(String response) throws GsonParsingException;
 
+	/**
+	 * Create {@link ServiceResponse} or any of it's subclasses from response stream. Used instead of
+	 * {@link #parseServiceResponse(String)} when streaming parse is enabled. Use {@link GSONParser} methods to create
+	 * objects from json stream.
+	 * 
+	 * @param reader response data stream.
+	 * @return {@link ServiceResponse} kind of object or <code>null</code> if streaming parse is not implemented.
+	 * @throws GsonParsingException thrown when gson parsing fails.
+	 */
+	protected ServiceResponse<T> parseServiceResponse(Reader reader) throws GsonParsingException {
+		return null;
+	}
+
 	/**
 	 * Helper function to take care of releasing resources associated with an actively loaded data set.
 	 */
@@ -220,88 +312,139 @@ public abstract class BaseGsonLoader<T> extends AsyncTaskLoader<LoaderResponse<T
 	public LoaderResponse<T> loadInBackground() {
 		final LoaderResponse<T> loaderResponse = new LoaderResponse<T>();
 
-		// Execute appropirate HTTP method for response
-		String response = null;
+		AsyncHttpResponseHandler responseHandler = new AsyncHttpResponseHandler() {
+
+			@Override
+			protected void sendResponseMessage(HttpResponse response) {
+				int statusCode = response.getStatusLine().getStatusCode();
+				HttpEntity entity = response.getEntity();
+				loaderResponse.setHttpStatusCode(statusCode);
+
+				// Failure responses are small, let them be handled as string
+				if (!streamingParse || entity == null || statusCode >= 300) {
+					super.sendResponseMessage(response);
+					return;
+				}
+
+				try {
+					// Try to parse service response data directly from stream
+					setServiceResponse(loaderResponse, parseServiceResponse(GSONParser.createResponseReader(entity)));
+				} catch (GsonParsingException e) {
+					onFailure(e, null);
+				} catch (IOException e) {
+					onFailure(e, null);
+				} finally {
+					try {
+						// Release the connection in case parser didn't read the whole stream
+						entity.consumeContent();
+					} catch (IOException e) {
+						// Connection is released by the client anyway
+					}
+				}
+			}
+
+			@Override
+			protected void sendMessage(Message msg) {
+				// Everything happens in loader thread, handle message directly
+				handleMessage(msg);
+			}
+
+			@Override
+			public void onSuccess(String content) {
+				if (content == null) {
+					// No response to parse
+					onFailure(new GsonParsingException("Empty response"), null);
+					return;
+				}
+				try {
+					// Try to parse service response data
+					setServiceResponse(loaderResponse, parseServiceResponse(content));
+				} catch (GsonParsingException e) {
+					// Error triggered while parsing response, setup failure loader response
+					loaderResponse.setServiceResponse(null);
+					loaderResponse.setSuccess(false);
+					loaderResponse.setError(e);
+				}
+				loaderResponse.setResponse(content);
+			}
+
+			@Override
+			public void onFailure(Throwable error, String content) {
+				// Called when request fails, setup loader response to return
+				loaderResponse.setSuccess(false);
+				loaderResponse.setError(error);
+				loaderResponse.setResponse(content);
+				loaderResponse.setServiceResponse(null);
+			}
+		};
+
+		// Client executes request in this thread
+		execute(responseHandler);
+		return loaderResponse;
+	}
+
+	/**
+	 * Executes appropriate HTTP method with given handler. The handler decides how the response body is parsed.
+	 * 
+	 * @param responseHandler handler of the response.
+	 */
+	private void execute(AsyncHttpResponseHandler responseHandler) {
 		switch (httpMethod) {
 		case GET:
-			response = syncHttpClient.get(url, headers, requestParams);
+			syncHttpClient.get(null, url, headers, requestParams, responseHandler);
 			break;
 
 		case POST:
 			// Check if paremeters are passed as url params or body entity
 			if (requestParams != null) {
-				response = syncHttpClient.post(url, headers, requestParams, contentType);
+				syncHttpClient.post(null, url, headers, requestParams, contentType, responseHandler);
 			} else {
-				response = syncHttpClient.post(url, headers, entity, contentType);
+				syncHttpClient.post(null, url, headers, entity, contentType, responseHandler);
 			}
-
 			break;
 
 		case PUT:
 			// Check if paremeters are passed as url params or body entity
 			if (requestParams != null) {
-				response = syncHttpClient.put(url, requestParams);
+				syncHttpClient.put(null, url, requestParams, responseHandler);
 			} else {
-				response = syncHttpClient.put(url, headers, entity, contentType);
+				syncHttpClient.put(null, url, headers, entity, contentType, responseHandler);
 			}
-
 			break;
 
 		case DELETE:
-			response = syncHttpClient.delete(url, headers);
+			syncHttpClient.delete(null, url, headers, responseHandler);
 			break;
 		}
+	}
 
-		// Check if there is any response. Null is only if request fails and onRequestFailed gets called
-		if (response != null) {
-			ServiceResponse<T> serviceResponse;
-			try {
-				// Try to parse service response data
-				serviceResponse = parseServiceResponse(response);
-
-				// Check if there is existing service response object
-				if (serviceResponse != null) {
-
-					// Check if there is existing data enapsulated by service response object
-					// data can be null when empty string is retuned as response ""
-					if (serviceResponse.getData() != null) {
-						// Everything went well, return succesful loader response result
-						loaderResponse.setSuccess(true);
-						loaderResponse.setError(null);
-					} else {
-						// There is no data. Error happened during parsing process trigger error
-						loaderResponse.setSuccess(false);
-						loaderResponse.setError(new GsonParsingException());
-					}
-				} else {
-					// ServiceResponse is null, parsing is not implemented trigger error
-					loaderResponse.setSuccess(false);
-					loaderResponse.setError(new ParsingNotImplementedException());
-				}
-
-				// Data needed in every scenario
-				loaderResponse.setServiceResponse(serviceResponse);
-				loaderResponse.setHttpStatusCode(syncHttpClient.getResponseCode());
-				loaderResponse.setResponse(response);
-
-			} catch (GsonParsingException e) {
-				// Error triggered while parsing response, setup failure loader response
-				loaderResponse.setServiceResponse(null);
+	/**
+	 * Checks parsed service response and sets up loader response accordingly.
+	 * 
+	 * @param loaderResponse loader response to set up.
+	 * @param serviceResponse parsed service response.
+	 */
+	private void setServiceResponse(LoaderResponse<T> loaderResponse, ServiceResponse<T> serviceResponse) {
+		// Check if there is existing service response object
+		if (serviceResponse != null) {
+
+			// Check if there is existing data enapsulated by service response object
+			// data can be null when empty string is retuned as response ""
+			if (serviceResponse.getData() != null) {
+				// Everything went well, return succesful loader response result
+				loaderResponse.setSuccess(true);
+				loaderResponse.setError(null);
+			} else {
+				// There is no data. Error happened during parsing process trigger error
 				loaderResponse.setSuccess(false);
-				loaderResponse.setHttpStatusCode(syncHttpClient.getResponseCode());
-				loaderResponse.setError(e);
-				loaderResponse.setResponse(response);
+				loaderResponse.setError(new GsonParsingException());
 			}
 		} else {
-			// Called when request fails, setup loader response to return
+			// ServiceResponse is null, parsing is not implemented trigger error
 			loaderResponse.setSuccess(false);
-			loaderResponse.setHttpStatusCode(syncHttpClient.getResponseCode());
-			loaderResponse.setError(errorThrowable);
-			loaderResponse.setResponse(errorResponse);
-			loaderResponse.setServiceResponse(null);
+			loaderResponse.setError(new ParsingNotImplementedException());
 		}
-
-		return loaderResponse;
+		loaderResponse.setServiceResponse(serviceResponse);
 	}
 
 	@Override
@@ -0,0 +1,124 @@
+package com.markom.android.http.parser;
+
+import java.io.Reader;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.markom.android.http.exceptions.GsonParsingException;
+import com.markom.android.http.model.ServiceResponse;
+
+/**
+ * Factory class for creating {@link ServiceResponse} subclasses from JSON schemas that wrap data together with
+ * additional top level objects, for example:
+ * <p>
+ * { "meta":{ ... }, "pagination":{ ... }, "data":{ ... } }
+ * <p>
+ * The response is walked only once. Each top level field is bound directly to the matching field of the
+ * {@link ServiceResponse} subclass (using {@link com.google.gson.annotations.SerializedName} if present), and
+ * <code>data</code> field is bound to the requested data type. Unknown fields are skipped.
+ * <p>
+ * The {@link ServiceResponse} subclass must declare exactly one type parameter that is passed to
+ * {@link ServiceResponse}, like <code>CustomServiceResponse&lt;T&gt; extends ServiceResponse&lt;T&gt;</code>. Example:
+ * 
+ * <pre>
+ * &#064;Override
+ * protected ServiceResponse&lt;T&gt; parseServiceResponse(String response) throws GsonParsingException {
+ * 	return EnvelopeParser.createEnvelopeFromResponse(CustomServiceResponse.class, clazz, response);
+ * }
+ * </pre>
+ * 
+ * @author Marko Milos
+ */
+public class EnvelopeParser {
+
+	/**
+	 * Creates a {@link ServiceResponse} subclass instance from the JSON response.
+	 * 
+	 * @param envelopeClass {@link ServiceResponse} subclass that maps the JSON schema.
+	 * @param dataType class or collection type of the data.
+	 * @param json a JSON response.
+	 * @return a {@link ServiceResponse} subclass instance with parsed data.
+	 * @throws GsonParsingException error while parsing JSON string with {@link Gson}.
+	 */
+	@SuppressWarnings("rawtypes")
+	public static <T> ServiceResponse<T> createEnvelopeFromResponse(Class<? extends ServiceResponse> envelopeClass,
+			Type dataType, final String json) throws GsonParsingException {
+		try {
+			return GSONParser.getGson().fromJson(json, new EnvelopeType(envelopeClass, dataType));
+		} catch (JsonParseException e) {
+			throw new GsonParsingException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Creates a {@link ServiceResponse} subclass instance from the JSON response stream. The stream is read token by
+	 * token, so no intermediate string of the whole response is created.
+	 * 
+	 * @param envelopeClass {@link ServiceResponse} subclass that maps the JSON schema.
+	 * @param dataType class or collection type of the data.
+	 * @param reader a JSON response stream.
+	 * @return a {@link ServiceResponse} subclass instance with parsed data.
+	 * @throws GsonParsingException error while reading or parsing JSON stream with {@link Gson}.
+	 */
+	@SuppressWarnings("rawtypes")
+	public static <T> ServiceResponse<T> createEnvelopeFromResponse(Class<? extends ServiceResponse> envelopeClass,
+			Type dataType, final Reader reader) throws GsonParsingException {
+		try {
+			return GSONParser.getGson().fromJson(reader, new EnvelopeType(envelopeClass, dataType));
+		} catch (JsonParseException e) {
+			throw new GsonParsingException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Parameterized type of the envelope class with data type as it's type argument, for example
+	 * <code>CustomServiceResponse&lt;Person&gt;</code>. {@link Gson} caches the envelope adapter per this type.
+	 */
+	private static class EnvelopeType implements ParameterizedType {
+
+		private final Class<?> rawType;
+		private final Type[] typeArguments;
+
+		public EnvelopeType(Class<?> rawType, Type dataType) {
+			if (rawType.getTypeParameters().length != 1) {
+				throw new IllegalArgumentException(rawType.getName() + " must declare exactly one type parameter");
+			}
+			this.rawType = rawType;
+			this.typeArguments = new Type[] { dataType };
+		}
+
+		@Override
+		public Type[] getActualTypeArguments() {
+			return typeArguments.clone();
+		}
+
+		@Override
+		public Type getRawType() {
+			return rawType;
+		}
+
+		@Override
+		public Type getOwnerType() {
+			return null;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof ParameterizedType)) {
+				return false;
+			}
+			ParameterizedType that = (ParameterizedType) other;
+			return that.getOwnerType() == null && rawType.equals(that.getRawType())
+					&& Arrays.equals(typeArguments, that.getActualTypeArguments());
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(typeArguments) ^ rawType.hashCode();
+		}
+	}
+
+}
@@ -1,18 +1,121 @@
 package com.markom.android.http.parser;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.lang.reflect.Type;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
 import com.markom.android.http.exceptions.GsonParsingException;
 
 /**
  * Factory class for creating model object instances based on JSON string and Class parameter.
+ * <p>
+ * All parsing is done with a single shared {@link Gson} instance, so type adapters built for a model class are reused
+ * by every following response. Custom type adapters are registered with
+ * {@link #registerTypeAdapterFactory(TypeAdapterFactory)} or {@link #registerTypeAdapter(Type, Object)}, and adapters
+ * for known model classes can be built ahead of time with {@link #prewarm(Type...)}. Example:
+ * 
+ * <pre>
+ * public class ExampleApplication extends Application {
+ * 
+ *     &#064;Override
+ *     public void onCreate() {
+ *         super.onCreate();
+ *         GSONParser.prewarm(Person.class, Meta.class, Pagination.class);
+ *     }
+ * }
+ * </pre>
  * 
  * @author Marko Milos
  */
 public class GSONParser {
 
+	/**
+	 * Charset used for response entities that don't specify one.
+	 */
+	private static final String DEFAULT_CHARSET = "UTF-8";
+
+	/**
+	 * Builder holding registered type adapters. Guarded by it's own lock, new {@link Gson} is created from it after each
+	 * registration.
+	 */
+	private static final GsonBuilder gsonBuilder = new GsonBuilder();
+
+	/**
+	 * Shared {@link Gson} instance. {@link Gson} is thread safe and caches type adapters per type.
+	 */
+	private static volatile Gson gson = gsonBuilder.create();
+
+	/**
+	 * Retrieves shared {@link Gson} instance used for parsing.
+	 * 
+	 * @return shared {@link Gson} instance.
+	 */
+	public static Gson getGson() {
+		return gson;
+	}
+
+	/**
+	 * Registers type adapter factory used for parsing. Register factories before calling {@link #prewarm(Type...)}
+	 * since each registration replaces shared {@link Gson} instance together with it's adapter cache.
+	 * 
+	 * @param factory type adapter factory to register.
+	 */
+	public static void registerTypeAdapterFactory(TypeAdapterFactory factory) {
+		synchronized (gsonBuilder) {
+			gsonBuilder.registerTypeAdapterFactory(factory);
+			gson = gsonBuilder.create();
+		}
+	}
+
+	/**
+	 * Registers type adapter, serializer, deserializer or instance creator used for parsing the given type. Register
+	 * adapters before calling {@link #prewarm(Type...)} since each registration replaces shared {@link Gson} instance
+	 * together with it's adapter cache.
+	 * 
+	 * @param type type to register adapter for.
+	 * @param typeAdapter adapter object, see {@link GsonBuilder#registerTypeAdapter(Type, Object)}.
+	 */
+	public static void registerTypeAdapter(Type type, Object typeAdapter) {
+		synchronized (gsonBuilder) {
+			gsonBuilder.registerTypeAdapter(type, typeAdapter);
+			gson = gsonBuilder.create();
+		}
+	}
+
+	/**
+	 * Builds type adapters for the given model types in background thread, so the first response of each type doesn't
+	 * pay for reflection. Call it once at application start.
+	 * 
+	 * @param types model classes or collection types to prepare.
+	 */
+	public static void prewarm(final Type... types) {
+		Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+
+				Gson prewarmGson = gson;
+				for (Type type : types) {
+					// Adapter is created and cached by shared gson instance
+					prewarmGson.getAdapter(TypeToken.get(type));
+				}
+			}
+		}, "GSONParser prewarm");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
 	/**
 	 * Creates an object from the JSON response and the class which the object would be mapped to.
 	 * 
@@ -22,8 +125,6 @@ public class GSONParser {
 	 * @throws GsonParsingException error while parsing JSON string with {@link Gson}.
 	 */
 	public static <T> T createObjectFromResponse(Class<T> clazz, final String json) throws GsonParsingException {
-		Gson gson = new Gson();
-
 		T object = null;
 		try {
 			object = gson.fromJson(json, clazz);
@@ -42,8 +143,6 @@ public class GSONParser {
 	 * @throws GsonParsingException error while parsing JSON string with {@link Gson}.
 	 */
 	public static <T> T createObjectListFromResponse(Type type, final String json) throws GsonParsingException {
-		Gson gson = new Gson();
-
 		T object = null;
 		try {
 			object = gson.fromJson(json, type);
@@ -53,4 +152,54 @@ public class GSONParser {
 		}
 	}
 
+	/**
+	 * Creates an object from the JSON response stream and the class which the object would be mapped to. The stream is
+	 * read token by token, so no intermediate string of the whole response is created.
+	 * 
+	 * @param clazz a class instance.
+	 * @param reader a JSON response stream.
+	 * @return a object of type <T>.
+	 * @throws GsonParsingException error while reading or parsing JSON stream with {@link Gson}.
+	 */
+	public static <T> T createObjectFromResponse(Class<T> clazz, final Reader reader) throws GsonParsingException {
+		try {
+			return gson.fromJson(reader, clazz);
+		} catch (JsonParseException e) {
+			throw new GsonParsingException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Creates an object list from the JSON response stream and the type of collection which the object would be mapped
+	 * to. The stream is read token by token, so no intermediate string of the whole response is created.
+	 * 
+	 * @param type a type of collection to create.
+	 * @param reader a JSON response stream.
+	 * @return a object of type <T>.
+	 * @throws GsonParsingException error while reading or parsing JSON stream with {@link Gson}.
+	 */
+	public static <T> T createObjectListFromResponse(Type type, final Reader reader) throws GsonParsingException {
+		try {
+			return gson.<T> fromJson(reader, type);
+		} catch (JsonParseException e) {
+			throw new GsonParsingException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Opens a reader over the (already decompressed) content of a response entity, using the charset declared by the
+	 * entity or UTF-8 if none is declared.
+	 * 
+	 * @param entity a response entity.
+	 * @return a reader over the response content.
+	 * @throws IOException if the entity content can't be opened.
+	 */
+	public static Reader createResponseReader(HttpEntity entity) throws IOException {
+		String charset = EntityUtils.getContentCharSet(entity);
+		if (charset == null) {
+			charset = DEFAULT_CHARSET;
+		}
+		return new InputStreamReader(entity.getContent(), charset);
+	}
+
 }
\ No newline at end of file
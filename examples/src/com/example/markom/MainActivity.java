@@ -6,6 +6,10 @@ import android.os.Bundle;
 import android.view.View;
 
 import com.example.librarytest.R;
+import com.example.markom.http.schema.Meta;
+import com.example.markom.http.schema.Pagination;
+import com.example.markom.model.Person;
+import com.markom.android.http.parser.GSONParser;
 
 public class MainActivity extends Activity {
 
@@ -13,6 +17,9 @@ public class MainActivity extends Activity {
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_main);
+
+		// Build parsers for example models before first response arrives
+		GSONParser.prewarm(Person.class, Meta.class, Pagination.class);
 	}
 
 	public void openHandlerExamples(View view) {
@@ -1,15 +1,12 @@
 package com.example.markom.http.handler;
 
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.io.Reader;
 
 import com.example.markom.http.schema.CustomServiceResponse;
-import com.example.markom.http.schema.Meta;
-import com.example.markom.http.schema.Pagination;
 import com.markom.android.http.exceptions.GsonParsingException;
 import com.markom.android.http.handler.BaseClassHandler;
 import com.markom.android.http.model.ServiceResponse;
-import com.markom.android.http.parser.GSONParser;
+import com.markom.android.http.parser.EnvelopeParser;
 
 /**
  * Custom class handler that parses JSON schema assuming that schema is structured like following example:
@@ -35,28 +32,14 @@ public class CustomClassHandler<T> extends BaseClassHandler<T> {
 
 	@Override
 	protected ServiceResponse<T> parseServiceResponse(String response) throws GsonParsingException {
-		try {
-			// Retrive json objects from JSON schema
-			JSONObject jsonObject = new JSONObject(response);
-			JSONObject metaObject = jsonObject.getJSONObject("meta");
-			JSONObject paginationObject = jsonObject.getJSONObject("pagination");
-			JSONObject dataObject = jsonObject.getJSONObject("data");
-
-			// Use GSONParser to create object from json string
-			Meta meta = GSONParser.createObjectFromResponse(Meta.class, metaObject.toString());
-			Pagination pagination = GSONParser.createObjectFromResponse(Pagination.class, paginationObject.toString());
-			T data = GSONParser.createObjectFromResponse(clazz, dataObject.toString());
-
-			// Setup CustomServiceResponse that extends ServiceResponse class and return the result
-			CustomServiceResponse<T> customServiceResponse = new CustomServiceResponse<T>();
-			customServiceResponse.setMeta(meta);
-			customServiceResponse.setPagination(pagination);
-			customServiceResponse.setData(data);
-			return customServiceResponse;
+		// Bind meta, pagination and data of the JSON schema in a single pass
+		return EnvelopeParser.createEnvelopeFromResponse(CustomServiceResponse.class, clazz, response);
+	}
 
-		} catch (JSONException e) {
-			throw new GsonParsingException(e.getMessage());
-		}
+	@Override
+	protected ServiceResponse<T> parseServiceResponse(Reader reader) throws GsonParsingException {
+		// Same as above, used when streaming parse is enabled
+		return EnvelopeParser.createEnvelopeFromResponse(CustomServiceResponse.class, clazz, reader);
 	}
 
 }
\ No newline at end of file